@@ -0,0 +1,168 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/*
+    Reads block gzip (BGZF, as written by BlockGzipOutputStream or bgzip): the compressed size of every
+    member is in its header, so members are read ahead and inflated on worker threads, in order.
+    open() falls back to GZIPInputStream for other gzip files, which can only be inflated sequentially,
+    and to the raw stream for uncompressed input.
+ */
+public class BlockGzipInputStream extends InputStream {
+    InputStream in;
+    ExecutorService executorService;
+    Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    int maxPending;
+    boolean endOfInput;
+    byte[] current = new byte[0];
+    int position;
+
+    public BlockGzipInputStream(InputStream in, int threads) {
+        this.in = in;
+        this.maxPending = Math.max(1, threads) * 4;
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "gunzip-block");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static InputStream open(InputStream raw, int threads) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(raw, 1 << 16);
+        in.mark(BlockGzipOutputStream.HEADER_SIZE);
+        byte[] header = new byte[BlockGzipOutputStream.HEADER_SIZE];
+        int read = in.readNBytes(header, 0, header.length);
+        in.reset();
+        if (read < 2 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b) {
+            return in;
+        }
+        if (read == header.length && isBlockGzipHeader(header)) {
+            return new BlockGzipInputStream(in, threads);
+        }
+        return new GZIPInputStream(in, 1 << 16);
+    }
+
+    public static boolean isGzip(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() == 0x1f && in.read() == 0x8b;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static boolean isBlockGzipHeader(byte[] header) {
+        return (header[3] & 4) != 0 && header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C'
+                && header[14] == 2 && header[15] == 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureData()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureData()) {
+            return -1;
+        }
+        int chunk = Math.min(length, current.length - position);
+        System.arraycopy(current, position, bytes, offset, chunk);
+        position += chunk;
+        return chunk;
+    }
+
+    private boolean ensureData() throws IOException {
+        while (position >= current.length) {
+            readAhead();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                current = pending.poll().get();
+                position = 0;
+            } catch (ExecutionException e) {
+                throw new IOException("Cannot inflate block", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted inflating block");
+            }
+        }
+        return true;
+    }
+
+    private void readAhead() throws IOException {
+        while (!endOfInput && pending.size() < maxPending) {
+            byte[] header = new byte[BlockGzipOutputStream.HEADER_SIZE];
+            int read = in.readNBytes(header, 0, header.length);
+            if (read == 0) {
+                endOfInput = true;
+                return;
+            }
+            if (read < header.length || !isBlockGzipHeader(header)) {
+                throw new IOException("Not a block gzip member");
+            }
+            int blockSize = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+            byte[] block = new byte[blockSize];
+            System.arraycopy(header, 0, block, 0, header.length);
+            if (in.readNBytes(block, header.length, blockSize - header.length) != blockSize - header.length) {
+                throw new EOFException("Truncated block gzip member");
+            }
+            pending.add(executorService.submit(() -> inflateBlock(block)));
+        }
+    }
+
+    static byte[] inflateBlock(byte[] block) throws IOException {
+        int size = block.length;
+        int dataStart = BlockGzipOutputStream.HEADER_SIZE;
+        int dataLength = size - dataStart - BlockGzipOutputStream.TRAILER_SIZE;
+        int expectedCrc = readInt(block, size - 8);
+        int uncompressedSize = readInt(block, size - 4);
+
+        byte[] data = new byte[uncompressedSize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(block, dataStart, dataLength);
+            int inflated = 0;
+            while (inflated < uncompressedSize && !inflater.finished()) {
+                int n = inflater.inflate(data, inflated, uncompressedSize - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Corrupt block gzip member");
+                }
+                inflated += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt block gzip member", e);
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Block gzip member CRC mismatch");
+        }
+        return data;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+                | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    @Override
+    public void close() throws IOException {
+        executorService.shutdownNow();
+        in.close();
+    }
+}
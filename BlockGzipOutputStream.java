@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+    Gzip output written as independent members of at most BLOCK_SIZE bytes, compressed on worker threads
+    and written in order. Every member carries the BGZF "BC" extra field with its compressed size, so the
+    file is a valid multi-member gzip (zcat, gzip -d) that can also be split at block boundaries and
+    decompressed in parallel (BlockGzipInputStream, bgzip). The stream ends with the empty BGZF EOF block.
+ */
+public class BlockGzipOutputStream extends OutputStream {
+    static int BLOCK_SIZE = 65280;
+    static int HEADER_SIZE = 18;
+    static int TRAILER_SIZE = 8;
+    static byte[] EOF_BLOCK = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0,
+            3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    OutputStream out;
+    ExecutorService executorService;
+    Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    int maxPending;
+    int level;
+    byte[] block = new byte[BLOCK_SIZE];
+    int count;
+    boolean closeOut;
+    boolean closed;
+
+    public BlockGzipOutputStream(OutputStream out, int threads, boolean closeOut) {
+        this(out, threads, closeOut, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public BlockGzipOutputStream(OutputStream out, int threads, boolean closeOut, int level) {
+        this.out = out;
+        this.closeOut = closeOut;
+        this.level = level;
+        this.maxPending = Math.max(1, threads) * 4;
+        this.executorService = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "gzip-block");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[count++] = (byte) b;
+        if (count == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            int chunk = Math.min(length, BLOCK_SIZE - count);
+            System.arraycopy(bytes, offset, block, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+            if (count == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int length = count;
+        block = new byte[BLOCK_SIZE];
+        count = 0;
+        pending.add(executorService.submit(() -> compressBlock(data, length, level)));
+        while (pending.size() > maxPending) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        try {
+            out.write(pending.poll().get());
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot compress block", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted compressing block");
+        }
+    }
+
+    // writes everything written so far, ending the current block early
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+            out.write(EOF_BLOCK);
+            out.flush();
+        } finally {
+            executorService.shutdownNow();
+            if (closeOut) {
+                out.close();
+            }
+        }
+    }
+
+    static byte[] compressBlock(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        byte[] compressed = new byte[HEADER_SIZE + BLOCK_SIZE + 1024 + TRAILER_SIZE];
+        int size;
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            size = HEADER_SIZE;
+            while (!deflater.finished()) {
+                size += deflater.deflate(compressed, size, compressed.length - TRAILER_SIZE - size);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int blockSize = size + TRAILER_SIZE;
+
+        // gzip header with FEXTRA, the BC subfield holds the block size - 1
+        byte[] header = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+                (byte) (blockSize - 1), (byte) ((blockSize - 1) >> 8)};
+        System.arraycopy(header, 0, compressed, 0, HEADER_SIZE);
+        writeInt(compressed, size, (int) crc.getValue());
+        writeInt(compressed, size + 4, length);
+
+        byte[] result = new byte[blockSize];
+        System.arraycopy(compressed, 0, result, 0, blockSize);
+        return result;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,95 @@
+import java.nio.charset.Charset;
+
+/*
+    Finds the newlines and commas of byte buffers, the inner loop of reading lines and splitting them into
+    columns in every phase. This is the scalar version, one byte at a time. VectorByteScanner compares 32 or
+    64 bytes at once with the incubator Vector API; it is compiled by build-vector.sh and used when the JVM
+    runs with --add-modules jdk.incubator.vector, else this one is.
+
+    -Dsortlargefile.scanner=scalar keeps the scalar one, e.g. to compare them.
+
+    Columns are split on every comma like String.split(",", -1), quotes are not special.
+ */
+public class ByteScanner {
+    static String SCALAR = "scalar";
+    static String VECTOR = "vector";
+    static String PROPERTY = "sortlargefile.scanner";
+    private static ByteScanner scanner = load();
+
+    public static ByteScanner get() {
+        return scanner;
+    }
+
+    private static ByteScanner load() {
+        if (SCALAR.equals(System.getProperty(PROPERTY))) {
+            return new ByteScanner();
+        }
+        try {
+            // not referenced directly, so everything else builds and runs without the module
+            return (ByteScanner) Class.forName("VectorByteScanner").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            if (VECTOR.equals(System.getProperty(PROPERTY))) {
+                System.err.println("WARN: no vector scanner (" + e + "), scanning one byte at a time");
+            }
+            return new ByteScanner();
+        }
+    }
+
+    public String name() {
+        return SCALAR;
+    }
+
+    // the first b in bytes[from, to), or -1
+    public int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // adds the positions of b in bytes[from, to) to positions
+    public void positions(byte[] bytes, int from, int to, byte b, Positions positions) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                positions.add(i);
+            }
+        }
+    }
+
+    // the columns of the line bytes[from, to), decoded column by column, like new String(...).split(",", -1)
+    public String[] split(byte[] bytes, int from, int to, Charset charset, Positions commas) {
+        commas.count = 0;
+        positions(bytes, from, to, (byte) ',', commas);
+        String[] columns = new String[commas.count + 1];
+        int start = from;
+        for (int i = 0; i < commas.count; i++) {
+            columns[i] = new String(bytes, start, commas.at[i] - start, charset);
+            start = commas.at[i] + 1;
+        }
+        columns[commas.count] = new String(bytes, start, to - start, charset);
+        return columns;
+    }
+
+    public int count(byte[] bytes, int from, int to, byte b, Positions scratch) {
+        scratch.count = 0;
+        positions(bytes, from, to, b, scratch);
+        return scratch.count;
+    }
+
+    // growable positions, reused line after line by one reader
+    static class Positions {
+        int[] at = new int[64];
+        int count;
+
+        void add(int position) {
+            if (count == at.length) {
+                int[] bigger = new int[at.length * 2];
+                System.arraycopy(at, 0, bigger, 0, count);
+                at = bigger;
+            }
+            at[count++] = position;
+        }
+    }
+}
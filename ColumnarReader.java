@@ -0,0 +1,306 @@
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/*
+    Reads a file written by ColumnarWriter. Only the footer is read when the file is opened; a block is read
+    when asked for, and then only the columns asked for:
+
+    a) blocks(from, to) keeps the blocks whose keys may be in [from, to], by the first and last key of every
+       block. from and to are values of the leading key columns, e.g. only event_type.
+    b) read(block, columns) seeks to each of those columns in the block and decodes it, dictionary values
+       shared by all the rows of their runs.
+
+    $ sortlargefile-columnar -f sorted-file.cols --select 1 4 7 --from purchase --to purchase
+ */
+public class ColumnarReader implements Closeable {
+    File file;
+    FileChannel channel;
+    // the key columns the rows are sorted by
+    KeySpec keySpec;
+    List<Block> blocks = new ArrayList<>();
+    // of the last scan
+    int blocksRead;
+
+    public ColumnarReader(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        int magic = ColumnarWriter.MAGIC.length;
+        long size = channel.size();
+        if (size < 2L * magic + Long.BYTES || !isColumnar(file)) {
+            throw new RuntimeException(file.getPath() + " is not a columnar file");
+        }
+        DataInputStream trailer = new DataInputStream(new ByteArrayInputStream(
+                read(size - magic - Long.BYTES, Long.BYTES)));
+        long footerOffset = trailer.readLong();
+        InputStream footer = new ByteArrayInputStream(
+                read(footerOffset, (int) (size - magic - Long.BYTES - footerOffset)));
+
+        long numBlocks = ColumnarWriter.readVarLong(footer);
+        keySpec = KeySpec.parse(ColumnarWriter.readString(footer).split(ExternalSorter.CSV_SPLIT_BY));
+        int keyWidth = Arrays.stream(keySpec.columns).max().getAsInt() + 1;
+        for (long i = 0; i < numBlocks; i++) {
+            Block block = new Block();
+            block.offset = ColumnarWriter.readVarLong(footer);
+            block.rows = (int) ColumnarWriter.readVarLong(footer);
+            block.columns = (int) ColumnarWriter.readVarLong(footer);
+            // the row widths first, then every column
+            block.chunkOffsets = new long[block.columns + 2];
+            block.chunkOffsets[0] = block.offset;
+            for (int chunk = 0; chunk <= block.columns; chunk++) {
+                block.chunkOffsets[chunk + 1] = block.chunkOffsets[chunk] + ColumnarWriter.readVarLong(footer);
+            }
+            block.first = new String[keyWidth];
+            block.last = new String[keyWidth];
+            for (String[] key : new String[][]{block.first, block.last}) {
+                for (int column : keySpec.columns) {
+                    key[column] = ColumnarWriter.readString(footer);
+                }
+            }
+            blocks.add(block);
+        }
+    }
+
+    public static boolean isColumnar(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return Arrays.equals(in.readNBytes(ColumnarWriter.MAGIC.length), ColumnarWriter.MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("f")
+                .longOpt("file-name")
+                .desc("Columnar file to read (written with --columnar)")
+                .hasArg()
+                .argName("FILE-NAME")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("select")
+                .desc("Columns to print, in this order (default all)")
+                .hasArgs()
+                .argName("COLUMNS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("from")
+                .desc("Smallest values of the leading key columns printed, e.g. purchase (default the first row)")
+                .hasArgs()
+                .argName("KEYS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("to")
+                .desc("Largest values of the leading key columns printed (default the last row)")
+                .hasArgs()
+                .argName("KEYS")
+                .build());
+        CommandLine cmd = SortCommand.parse(options, args, "sortlargefile-columnar");
+        if (cmd == null) {
+            return;
+        }
+
+        int[] select = cmd.hasOption("select") ? KeySpec.parse(cmd.getOptionValues("select")).columns : null;
+        File file = new File(cmd.getOptionValue("f"));
+        try (ColumnarReader reader = new ColumnarReader(file);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(System.out, ExternalSorter.CHARSET))) {
+            long rows = reader.scan(select, cmd.getOptionValues("from"), cmd.getOptionValues("to"), row -> {
+                try {
+                    writer.write(String.join(ExternalSorter.CSV_SPLIT_BY, row));
+                    writer.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            writer.flush();
+            // stdout carries the rows only
+            System.err.println("Read " + reader.blocksRead + " of " + reader.blocks.size() + " blocks, "
+                    + (select != null ? select.length + " columns" : "all columns") + ", " + rows + " rows");
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot read " + file.getPath());
+        }
+    }
+
+    // the rows with their keys in [from, to] (either null for no bound), cut to the select columns (all if
+    // null, missing ones empty), to consumer in order; returns how many
+    public long scan(int[] select, String[] from, String[] to, Consumer<String[]> consumer)
+            throws IOException {
+        int[] columns = null;
+        if (select != null) {
+            // the key columns are read too, to compare the rows with from and to
+            columns = Arrays.copyOf(select, select.length + keySpec.columns.length);
+            System.arraycopy(keySpec.columns, 0, columns, select.length, keySpec.columns.length);
+        }
+        Bound lower = from != null ? new Bound(from) : null;
+        Bound upper = to != null ? new Bound(to) : null;
+        blocksRead = 0;
+        long rows = 0;
+        for (Block block : blocks(from, to)) {
+            blocksRead++;
+            for (String[] row : read(block, columns)) {
+                if ((lower != null && lower.compare(row) < 0) || (upper != null && upper.compare(row) > 0)) {
+                    continue;
+                }
+                if (select != null) {
+                    String[] selected = new String[select.length];
+                    for (int i = 0; i < select.length; i++) {
+                        selected[i] = select[i] < row.length && row[select[i]] != null ? row[select[i]] : "";
+                    }
+                    row = selected;
+                }
+                consumer.accept(row);
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    // the blocks that may hold keys in [from, to], either null for no bound
+    public List<Block> blocks(String[] from, String[] to) {
+        Bound lower = from != null ? new Bound(from) : null;
+        Bound upper = to != null ? new Bound(to) : null;
+        List<Block> kept = new ArrayList<>();
+        for (Block block : blocks) {
+            if ((lower == null || lower.compare(block.last) >= 0) && (upper == null || upper.compare(block.first) <= 0)) {
+                kept.add(block);
+            }
+        }
+        return kept;
+    }
+
+    // the rows of a block with only the columns given (all if null) set, the others null
+    public List<String[]> read(Block block, int[] columns) throws IOException {
+        int[] widths = null;
+        if (columns == null) {
+            columns = new int[block.columns];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = i;
+            }
+            widths = widths(block);
+        }
+        String[][] rows = new String[block.rows][];
+        int width = block.columns;
+        for (int column : columns) {
+            width = Math.max(width, column + 1);
+        }
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new String[widths != null ? widths[i] : width];
+        }
+        for (int column : columns) {
+            if (column >= block.columns) {
+                continue;
+            }
+            InputStream in = new ByteArrayInputStream(read(block.chunkOffsets[column + 1],
+                    (int) (block.chunkOffsets[column + 2] - block.chunkOffsets[column + 1])));
+            int encoding = in.read();
+            if (encoding == ColumnarWriter.PLAIN) {
+                for (String[] row : rows) {
+                    String value = ColumnarWriter.readString(in);
+                    if (column < row.length) {
+                        row[column] = value;
+                    }
+                }
+            } else if (encoding == ColumnarWriter.DICTIONARY_RLE) {
+                String[] dictionary = new String[(int) ColumnarWriter.readVarLong(in)];
+                for (int i = 0; i < dictionary.length; i++) {
+                    dictionary[i] = ColumnarWriter.readString(in);
+                }
+                long runs = ColumnarWriter.readVarLong(in);
+                int at = 0;
+                for (long run = 0; run < runs; run++) {
+                    String value = dictionary[(int) ColumnarWriter.readVarLong(in)];
+                    for (long count = ColumnarWriter.readVarLong(in); count > 0; count--, at++) {
+                        if (column < rows[at].length) {
+                            rows[at][column] = value;
+                        }
+                    }
+                }
+            } else {
+                throw new RuntimeException("Unknown column encoding " + encoding + " in " + file.getPath());
+            }
+        }
+        return Arrays.asList(rows);
+    }
+
+    // the number of columns of every row
+    private int[] widths(Block block) throws IOException {
+        InputStream in = new ByteArrayInputStream(read(block.chunkOffsets[0],
+                (int) (block.chunkOffsets[1] - block.chunkOffsets[0])));
+        int[] widths = new int[block.rows];
+        int at = 0;
+        while (at < widths.length) {
+            int width = (int) ColumnarWriter.readVarLong(in);
+            for (long count = ColumnarWriter.readVarLong(in); count > 0; count--) {
+                widths[at++] = width;
+            }
+        }
+        return widths;
+    }
+
+    // positional reads, several threads may read blocks at once
+    private byte[] read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated columnar file " + file.getPath());
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // values of the leading key columns, compared with rows on those columns only
+    private class Bound {
+        String[] row;
+        ColumnsComparator comparator;
+        // the key columns of the row compared, the comparator wants rows of one width
+        String[] keys;
+
+        Bound(String[] keys) {
+            if (keys.length > keySpec.columns.length) {
+                throw new RuntimeException(file.getPath() + " is sorted by " + keySpec + ", " + keys.length
+                        + " key values are too many");
+            }
+            KeySpec prefix = keySpec.prefix(keys.length);
+            row = new String[Arrays.stream(keySpec.columns).max().getAsInt() + 1];
+            for (int i = 0; i < keys.length; i++) {
+                row[prefix.columns[i]] = keys[i];
+            }
+            comparator = prefix.comparator(new LongAdder());
+            this.keys = new String[row.length];
+        }
+
+        // of a row against the bound
+        int compare(String[] other) {
+            for (int column : comparator.columnNumbers) {
+                keys[column] = other[column];
+            }
+            return comparator.compare(keys, row);
+        }
+    }
+
+    public static class Block {
+        long offset;
+        int rows;
+        int columns;
+        // where the row widths and every column start, and the block ends
+        long[] chunkOffsets;
+        // the key columns of the first and last row, the others null
+        String[] first;
+        String[] last;
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Sorted rows written as column blocks instead of csv lines:
+
+    a) Rows are cut into blocks of blockRows. A block stores its columns one after the other, each either
+       dictionary and run-length encoded (its distinct values once, then (code, count) runs) or plain (every
+       value), whichever suits its values: the sorted key columns are a few runs per block.
+    b) Every block records the key columns of its first and last row, its smallest and largest key since the
+       rows are sorted.
+    c) A footer after the last block lists the blocks with their offset, the byte length of every column and
+       the keys, so a reader (ColumnarReader) seeks to the blocks and columns it needs and skips the others.
+
+    Layout: MAGIC, the blocks, the footer (block count, key spec, then per block: offset, rows, columns, the
+    length of the row widths and of every column, first and last key), the footer offset (8 bytes), MAGIC.
+    Values are UTF-8 with their length + 1 before them (0 for a missing column), numbers are varints.
+ */
+public class ColumnarWriter {
+    static byte[] MAGIC = "SLFCOL1\n".getBytes(StandardCharsets.US_ASCII);
+    static String EXTENSION = ".cols";
+    static int BLOCK_ROWS = 64 * 1024;
+    static int PLAIN = 0;
+    static int DICTIONARY_RLE = 1;
+
+    OutputStream out;
+    KeySpec keySpec;
+    int blockRows;
+    List<String[]> block = new ArrayList<>();
+    ByteArrayOutputStream footer = new ByteArrayOutputStream();
+    int numBlocks;
+    // bytes written so far
+    long offset;
+
+    // out is written as blocks fill up, and not closed by finish()
+    public ColumnarWriter(OutputStream out, KeySpec keySpec, int blockRows) throws IOException {
+        this.out = out;
+        this.keySpec = keySpec;
+        this.blockRows = Math.max(1, blockRows);
+        out.write(MAGIC);
+        offset = MAGIC.length;
+        writeString(footer, keySpec.toString());
+    }
+
+    public void write(String[] row) throws IOException {
+        block.add(row);
+        if (block.size() == blockRows) {
+            writeBlock();
+        }
+    }
+
+    // the last block and the footer
+    public void finish() throws IOException {
+        if (!block.isEmpty()) {
+            writeBlock();
+        }
+        ByteArrayOutputStream end = new ByteArrayOutputStream();
+        writeVarLong(end, numBlocks);
+        footer.writeTo(end);
+        DataOutputStream trailer = new DataOutputStream(end);
+        trailer.writeLong(offset);
+        trailer.write(MAGIC);
+        end.writeTo(out);
+        offset += end.size();
+        out.flush();
+    }
+
+    private void writeBlock() throws IOException {
+        int columns = 0;
+        for (String[] row : block) {
+            columns = Math.max(columns, row.length);
+        }
+        List<ByteArrayOutputStream> chunks = new ArrayList<>();
+        chunks.add(widths());
+        for (int column = 0; column < columns; column++) {
+            chunks.add(column(column));
+        }
+
+        writeVarLong(footer, offset);
+        writeVarLong(footer, block.size());
+        writeVarLong(footer, columns);
+        for (ByteArrayOutputStream chunk : chunks) {
+            writeVarLong(footer, chunk.size());
+            chunk.writeTo(out);
+            offset += chunk.size();
+        }
+        for (String[] key : new String[][]{block.get(0), block.get(block.size() - 1)}) {
+            for (int column : keySpec.columns) {
+                writeString(footer, column < key.length ? key[column] : "");
+            }
+        }
+        numBlocks++;
+        block.clear();
+    }
+
+    // (width, count) runs of the number of columns of the rows
+    private ByteArrayOutputStream widths() {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        int run = 0;
+        for (int i = 0; i < block.size(); i++) {
+            run++;
+            if (i + 1 == block.size() || block.get(i + 1).length != block.get(i).length) {
+                writeVarLong(chunk, block.get(i).length);
+                writeVarLong(chunk, run);
+                run = 0;
+            }
+        }
+        return chunk;
+    }
+
+    private ByteArrayOutputStream column(int column) {
+        Map<String, Integer> codes = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int runs = 0;
+        String previous = null;
+        for (int i = 0; i < block.size(); i++) {
+            String value = value(i, column);
+            if (!codes.containsKey(value)) {
+                codes.put(value, dictionary.size());
+                dictionary.add(value);
+            }
+            if (i == 0 || !equal(value, previous)) {
+                runs++;
+            }
+            previous = value;
+        }
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        // few distinct values or long runs of one
+        if (dictionary.size() > block.size() / 4 && runs > block.size() / 4) {
+            chunk.write(PLAIN);
+            for (int i = 0; i < block.size(); i++) {
+                writeString(chunk, value(i, column));
+            }
+            return chunk;
+        }
+        chunk.write(DICTIONARY_RLE);
+        writeVarLong(chunk, dictionary.size());
+        for (String value : dictionary) {
+            writeString(chunk, value);
+        }
+        writeVarLong(chunk, runs);
+        int run = 0;
+        for (int i = 0; i < block.size(); i++) {
+            run++;
+            if (i + 1 == block.size() || !equal(value(i + 1, column), value(i, column))) {
+                writeVarLong(chunk, codes.get(value(i, column)));
+                writeVarLong(chunk, run);
+                run = 0;
+            }
+        }
+        return chunk;
+    }
+
+    private String value(int row, int column) {
+        String[] values = block.get(row);
+        return column < values.length ? values[column] : null;
+    }
+
+    private static boolean equal(String one, String two) {
+        return one == null ? two == null : one.equals(two);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static String readString(InputStream in) throws IOException {
+        int length = (int) readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = in.readNBytes(length - 1);
+        if (bytes.length != length - 1) {
+            throw new EOFException("Truncated value in columnar file");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 7 bits a byte, the high bit set on all but the last
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated number in columnar file");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ColumnsComparator implements Comparator<String[]> {
+    int[] columnNumbers;
+    // per key column, null if compared as Strings; null if none is collated
+    Collator[] collators;
+    LongAdder comparisons;
+
+    public ColumnsComparator(int[] columnNumbers, LongAdder comparisons) {
+        this(columnNumbers, null, comparisons);
+    }
+
+    public ColumnsComparator(int[] columnNumbers, Collator[] collators, LongAdder comparisons) {
+        this.columnNumbers = columnNumbers;
+        this.collators = collators;
+        this.comparisons = comparisons;
+    }
+
+    boolean isCollated() {
+        return collators != null;
+    }
+
+    // the key of a row as bytes in the order of this comparator, to compute once per row with compareKeys
+    byte[] sortKey(String[] row) {
+        return KeySpec.encode(row, columnNumbers, collators);
+    }
+
+    int compareKeys(byte[] keyOne, byte[] keyTwo) {
+        comparisons.increment();
+        return Arrays.compareUnsigned(keyOne, keyTwo);
+    }
+
+    // sorted rows, stable; with collators by their sort keys instead of collating at every comparison
+    List<String[]> sort(List<String[]> rows) {
+        if (!isCollated()) {
+            rows.sort(this);
+            return rows;
+        }
+        List<Keyed> keyed = new ArrayList<>(rows.size());
+        for (String[] row : rows) {
+            keyed.add(new Keyed(sortKey(row), row));
+        }
+        keyed.sort((one, two) -> compareKeys(one.key, two.key));
+        List<String[]> sorted = new ArrayList<>(rows.size());
+        for (Keyed row : keyed) {
+            sorted.add(row.row);
+        }
+        return sorted;
+    }
+
+    @Override
+    public int compare(String[] columnsOne, String[] columnsTwo) {
+        comparisons.increment();
+        if (columnsOne.length != columnsTwo.length) {
+            StringBuffer sb = new StringBuffer();
+            for (int i = 0; i < columnsOne.length; i++) {
+                sb.append(columnsOne[i] + "|");
+            }
+            System.err.println("columnsOne: " + sb.toString());
+
+            sb = new StringBuffer();
+            for (int i = 0; i < columnsTwo.length; i++) {
+                sb.append(columnsTwo[i] + "|");
+            }
+            System.err.println("columnsTwo: " + sb.toString());
+            throw new RuntimeException("Cannot compare columns of different sizes");
+        }
+
+        for (int i = 0; i < columnNumbers.length; i++) {
+            String columnOne = columnsOne[columnNumbers[i]];
+            String columnTwo = columnsTwo[columnNumbers[i]];
+
+            int comparison;
+            if (columnOne == null && columnTwo == null) {
+                comparison = 0;
+            } else if (columnOne == null) {
+                comparison = -1;
+            } else if (columnTwo == null) {
+                comparison = 1;
+            } else if (collators != null && collators[i] != null) {
+                comparison = collators[i].compare(columnOne, columnTwo);
+            } else {
+                comparison = columnOne.compareTo(columnTwo);
+            }
+
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    private static class Keyed {
+        byte[] key;
+        String[] row;
+
+        Keyed(byte[] key, String[] row) {
+            this.key = key;
+            this.row = row;
+        }
+    }
+}
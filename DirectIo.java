@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/*
+    Spill file streams that keep the intermediate files out of the page cache, so the gigabytes written and
+    read back once do not evict the input or the memory of other processes.
+
+    a) O_DIRECT (ExtendedOpenOption.DIRECT): whole aligned blocks of at least MIN_CHUNK_BYTES go straight
+       between an aligned direct ByteBuffer and the disk. The last block is padded with zeros and the file
+       truncated to its real length afterwards.
+    b) Where O_DIRECT is refused (tmpfs, some filesystems and platforms) writes go out in the same big chunks
+       and are forced to disk every FORCE_BYTES, so the dirty pages are written back early and are clean,
+       first to be dropped. Java cannot ask the kernel to drop them (posix_fadvise); reads use the page cache.
+ */
+public class DirectIo {
+    static int MIN_CHUNK_BYTES = 1024 * 1024;
+    static long FORCE_BYTES = 64L * 1024 * 1024;
+
+    // O_DIRECT can be used for files in dir
+    static boolean isSupported(File dir) {
+        File probe = null;
+        try {
+            probe = File.createTempFile("sortlargefile-direct", ".tmp", dir);
+            try (FileChannel channel = FileChannel.open(probe.toPath(), StandardOpenOption.WRITE,
+                    ExtendedOpenOption.DIRECT)) {
+                int blockSize = blockSize(probe);
+                ByteBuffer block = ByteBuffer.allocateDirect(2 * blockSize).alignedSlice(blockSize);
+                block.limit(blockSize);
+                channel.write(block);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        } finally {
+            if (probe != null) {
+                probe.delete();
+            }
+        }
+    }
+
+    static int blockSize(File file) throws IOException {
+        return (int) Files.getFileStore(file.getAbsoluteFile().getParentFile().toPath()).getBlockSize();
+    }
+
+    static int chunkBytes(int bufferSizeBytes, int blockSize) {
+        int chunk = Math.max(MIN_CHUNK_BYTES, bufferSizeBytes);
+        return (chunk + blockSize - 1) / blockSize * blockSize;
+    }
+
+    static OutputStream output(File file, int bufferSizeBytes, boolean direct) throws IOException {
+        return direct ? new DirectOutputStream(file, bufferSizeBytes) : new ForcedOutputStream(file, bufferSizeBytes);
+    }
+
+    static InputStream input(File file, int bufferSizeBytes, boolean direct) throws IOException {
+        return direct ? new DirectInputStream(file, bufferSizeBytes) : new FileInputStream(file);
+    }
+
+    private static class DirectOutputStream extends OutputStream {
+        FileChannel channel;
+        File file;
+        ByteBuffer buffer;
+        int blockSize;
+        long size;
+        boolean closed;
+
+        DirectOutputStream(File file, int bufferSizeBytes) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, ExtendedOpenOption.DIRECT);
+            this.blockSize = blockSize(file);
+            int chunk = chunkBytes(bufferSizeBytes, blockSize);
+            this.buffer = ByteBuffer.allocateDirect(chunk + blockSize).alignedSlice(blockSize);
+            this.buffer.limit(chunk);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.put((byte) b);
+            size++;
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            size += length;
+            while (length > 0) {
+                int chunk = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+                if (!buffer.hasRemaining()) {
+                    writeBuffer();
+                }
+            }
+        }
+
+        // the buffer is a whole number of blocks, also the last one once padded
+        private void writeBuffer() throws IOException {
+            int limit = buffer.limit();
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            buffer.limit(limit);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                int tail = buffer.position() % blockSize;
+                if (tail > 0) {
+                    while (tail++ < blockSize) {
+                        buffer.put((byte) 0);
+                    }
+                }
+                if (buffer.position() > 0) {
+                    buffer.limit(buffer.position());
+                    writeBuffer();
+                }
+            } finally {
+                channel.close();
+            }
+            // drop the padding
+            try (FileChannel truncate = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                truncate.truncate(size);
+            }
+        }
+    }
+
+    private static class DirectInputStream extends InputStream {
+        FileChannel channel;
+        ByteBuffer buffer;
+        int blockSize;
+        int chunk;
+        boolean endOfFile;
+
+        DirectInputStream(File file, int bufferSizeBytes) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+            this.blockSize = blockSize(file);
+            this.chunk = chunkBytes(bufferSizeBytes, blockSize);
+            this.buffer = ByteBuffer.allocateDirect(chunk + blockSize).alignedSlice(blockSize);
+            this.buffer.limit(0);
+        }
+
+        // reads whole chunks only, so every read starts at an aligned offset
+        private boolean ensureData() throws IOException {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+            if (endOfFile) {
+                return false;
+            }
+            buffer.clear();
+            buffer.limit(chunk);
+            while (buffer.position() < chunk) {
+                // a partial block is the end of the file, the next offset would not be aligned
+                if (channel.read(buffer) < 0 || buffer.position() % blockSize != 0) {
+                    endOfFile = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureData() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            int chunk = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, chunk);
+            return chunk;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class ForcedOutputStream extends OutputStream {
+        FileChannel channel;
+        ByteBuffer buffer;
+        long unforcedBytes;
+        boolean closed;
+
+        ForcedOutputStream(File file, int bufferSizeBytes) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.buffer = ByteBuffer.allocate(Math.max(MIN_CHUNK_BYTES, bufferSizeBytes));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer.put((byte) b);
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int chunk = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+                if (!buffer.hasRemaining()) {
+                    writeBuffer();
+                }
+            }
+        }
+
+        private void writeBuffer() throws IOException {
+            buffer.flip();
+            unforcedBytes += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            if (unforcedBytes >= FORCE_BYTES) {
+                channel.force(false);
+                unforcedBytes = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeBuffer();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,938 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/*
+    External sort of csv rows by some given string columns:
+
+    a) Cut the input into runs sized by the plan. Files are not rewritten: every file, or newline aligned
+       byte range of a big file, is a run source read directly by its sorter, with the header line of every
+       file skipped. Only streams (stdin) are split into run files as they are read.
+    b) Sort each run in memory, several runs at a time, into a run file. By comparisons (ColumnsComparator),
+       or with limits.radixSort by MSD radix sort of the encoded keys (RadixSorter). With limits.dictionary
+       the key columns are first sampled into a KeyDictionary, and runs are sorted and merged on its codes.
+    c) Merge the sorted runs, in intermediate passes if there are more runs than the merge fan-in.
+       The first and last row of every run are recorded (RunKeyRange): runs whose keys overlap no other
+       run are not merged but copied as they are, and only runs that overlap count against the fan-in.
+       The last merge is not written anywhere: it is handed to the caller as SortedRows, so rows can be
+       consumed in-process, or written to a file or a stream (e.g. stdout) with sort(input, output).
+
+    With several key specs (sortAll) every run is read and parsed once and its rows sorted and written once
+    per key spec; the runs of every order are merged into their own SortedRows, and sort(input, outputs)
+    writes them all at once, one thread per output.
+
+    Files (not gzip) whose rows fit in the heap at once are sorted in memory when the plan says so: the sorted
+    ranges are kept instead of written to run files and merged from the heap, so nothing is spilled.
+
+    Run files go to the work dir, or are spread over the tmp dirs of the limits (see SpillDirs), so spills
+    and merge reads use all their disks; the output and the metrics report stay in the work dir. With
+    limits.directIo run files bypass the page cache. With limits.offHeap runs are sorted as bytes in pooled
+    off-heap buffers (OffHeapRunSorter) and merge inputs are read through off-heap blocks, so the heap
+    only holds the rows being merged.
+
+    With limits.checkpoint the runs and intermediate merges done are recorded in a SortManifest in the work
+    dir and kept if the sort fails, so running it again resumes at the first run or merge not done.
+
+    With limits.tagSort and a file or stream output, only the keys and places of the rows are sorted and the
+    rows are copied to the output from the memory-mapped input (TagSorter), nothing is parsed from run files.
+
+    With limits.select only those columns are kept, cut as the input is read, so runs, merges and the output
+    carry only them; the key columns must be selected and are sorted by their place in the selected ones.
+
+    Inputs of unknown size (stdin) are split into runs sized by the memory budget. Gzip files and streams are
+    split into run files like stdin; output files named .gz, or any output with gzipOutput, are written as
+    block gzip compressed on plan.numFileSorters threads. Output files named .cols, or any output with
+    columnarOutput, are written as column blocks (ColumnarWriter) instead of csv lines.
+
+    ExternalSorter sorter = new ExternalSorter(new KeySpec(1, 4, 5), new SortLimits());
+    try (SortedRows rows = sorter.sort(InputSource.file("file.csv"))) {
+        while (rows.hasNext()) {
+            String[] row = rows.next();
+        }
+    }
+ */
+public class ExternalSorter {
+    static String CSV_SPLIT_BY = ",";
+    static String CSV_EXTENSION = ".csv";
+    // of every row read and written, whatever the platform charset, so filters, keys and runs agree
+    static Charset CHARSET = StandardCharsets.UTF_8;
+
+    KeySpec keySpec;
+    // every order the rows are sorted in from the same reads, keySpec first
+    List<KeySpec> keySpecs;
+    // the key columns of the rows as read, after limits.select
+    KeySpec rowKeySpec;
+    List<KeySpec> rowKeySpecs;
+    SortLimits limits;
+    PrintStream log = System.out;
+    boolean gzipOutput;
+    boolean columnarOutput;
+
+    // of the last sort
+    SortMetrics metrics;
+    SortPlanner.Plan plan;
+    KeyDictionary dictionary;
+    SortManifest manifest;
+    // of the run files written by the last sort, missing for off-heap runs
+    Map<File, RunKeyRange> keyRanges = new ConcurrentHashMap<>();
+    // off-heap run buffers, kept for the next sorts
+    OffHeapArena arena;
+
+    public ExternalSorter(KeySpec keySpec, SortLimits limits) {
+        this(Collections.singletonList(keySpec), limits);
+    }
+
+    public ExternalSorter(List<KeySpec> keySpecs, SortLimits limits) {
+        this.keySpec = keySpecs.get(0);
+        this.keySpecs = keySpecs;
+        this.limits = limits;
+    }
+
+    public SortedRows sort(InputSource input) {
+        if (keySpecs.size() > 1) {
+            throw new RuntimeException("Several key specs are sorted with sortAll");
+        }
+        return sortAll(input).get(0);
+    }
+
+    // the rows in every order of keySpecs, from one read and parse of the input; every SortedRows must be closed
+    public List<SortedRows> sortAll(InputSource input) {
+        if (keySpecs.size() > 1 && (limits.offHeap || limits.dictionary || limits.checkpoint)) {
+            throw new RuntimeException("Off-heap runs, dictionaries and checkpoints sort by one key spec at a time");
+        }
+        rowKeySpecs = new ArrayList<>();
+        for (KeySpec spec : keySpecs) {
+            if (spec.isCollated() && (limits.offHeap || limits.dictionary)) {
+                throw new RuntimeException("Collated columns are not sorted off-heap or with a dictionary");
+            }
+            rowKeySpecs.add(limits.select != null ? spec.select(limits.select) : spec);
+        }
+        rowKeySpec = rowKeySpecs.get(0);
+        File workDir = limits.workDir != null ? limits.workDir : defaultWorkDir(input);
+        workDir.mkdirs();
+        SpillDirs spillDirs = new SpillDirs(limits.tmpDirs.isEmpty()
+                ? Collections.singletonList(workDir) : limits.tmpDirs, limits.placeByFreeSpace, limits.directIo);
+
+        SortManifest manifest = null;
+        if (limits.checkpoint && input.isSeekable()) {
+            manifest = SortManifest.open(workDir, input, keySpec, limits, log);
+            spillDirs.checksums = new HashMap<>();
+        } else if (limits.checkpoint) {
+            log.println("WARN: " + input.name + " is a stream, it cannot be checkpointed");
+        }
+        this.manifest = manifest;
+        keyRanges.clear();
+
+        SortMetrics metrics = new SortMetrics(input.name);
+        this.metrics = metrics;
+        SortPlanner.Plan plan = new SortPlanner(input, spillDirs.first(), limits, log).plan();
+        this.plan = plan;
+        if (manifest != null && manifest.mergeFanIn > 0) {
+            // the merge groups of the first try
+            plan.mergeFanIn = manifest.mergeFanIn;
+        } else if (keySpecs.size() > 1 && limits.mergeFanIn == null) {
+            // the last merges of all the orders read their runs at once
+            plan.mergeFanIn = Math.max(2, plan.mergeFanIn / keySpecs.size());
+        }
+        // only byte ranges are loaded in memory, streams and gzip files are split into run files as they are read
+        plan.inMemory = plan.inMemory && manifest == null && input.isSeekable() && input.gzipFiles.isEmpty();
+        plan.print(log);
+        if (limits.offHeap) {
+            if (arena == null || arena.maxBytes != plan.offHeapBytes) {
+                arena = new OffHeapArena(plan.offHeapBytes);
+            }
+            spillDirs.arena = arena;
+        }
+
+        List<File> runs = new ArrayList<>();
+        metrics.start();
+        try {
+            SortMetrics.Phase phase = metrics.startPhase(SortMetrics.SPLIT);
+            List<RunSource> sources = new ArrayList<>();
+            if (manifest != null && manifest.sources != null) {
+                sources.addAll(manifest.sources);
+            } else if (input.isSeekable()) {
+                for (File file : input.files) {
+                    if (input.isGzip(file)) {
+                        splitInput(input.open(file, plan.bufferSizeBytes, plan.numFileSorters), input.hasHeader,
+                                spillDirs, plan, sources, runs, phase);
+                    } else {
+                        sources.addAll(byteRanges(file, input.hasHeader, plan));
+                    }
+                }
+            } else {
+                splitInput(input.open(plan.bufferSizeBytes, plan.numFileSorters), input.hasHeader, spillDirs, plan,
+                        sources, runs, phase);
+            }
+            if (manifest != null && manifest.sources == null) {
+                manifest.sourcesSplit(sources, plan.mergeFanIn);
+            }
+            phase.end();
+
+            phase = metrics.startPhase(SortMetrics.SORT);
+            dictionary = limits.dictionary
+                    ? KeyDictionary.sample(rowKeySpec, sources, limits, plan.bufferSizeBytes, metrics) : null;
+            if (dictionary != null) {
+                dictionary.print(log);
+                metrics.dictionaryColumns = dictionary.values.length;
+            } else if (limits.dictionary) {
+                log.println("Dictionary: none, column " + keySpec.columns[0] + " has more than "
+                        + KeyDictionary.MAX_VALUES + " values");
+            }
+            List<List<File>> runsByOrder = new ArrayList<>();
+            List<RunSorter> sorters = sortRuns(sources, spillDirs, plan, runs, runsByOrder, phase);
+            phase.end();
+
+            SortMetrics.Phase mergePhase = metrics.startPhase(SortMetrics.MERGE);
+            List<List<File>> finalRunsByOrder = new ArrayList<>();
+            for (int order = 0; order < runsByOrder.size(); order++) {
+                finalRunsByOrder.add(plan.inMemory ? runsByOrder.get(order)
+                        : mergeDown(runsByOrder.get(order), order, spillDirs, plan, mergePhase));
+            }
+            runs.clear();
+            for (List<File> finalRuns : finalRunsByOrder) {
+                runs.addAll(finalRuns);
+            }
+            SortManifest checkpoint = manifest;
+            List<SortedRows> sorted = new ArrayList<>();
+            // the last one closed ends the sort
+            AtomicInteger open = new AtomicInteger(keySpecs.size());
+            for (int order = 0; order < keySpecs.size(); order++) {
+                Comparator<String[]> comparator = rowKeySpecs.get(order).comparator(metrics.comparisons);
+                SortedRows sortedRows;
+                List<File> finalRuns = finalRunsByOrder.get(order);
+                if (plan.inMemory) {
+                    List<List<String[]>> ranges = new ArrayList<>();
+                    for (RunSorter sorter : sorters) {
+                        ranges.add(sorter.sorted.get(order));
+                    }
+                    sortedRows = SortedRows.inMemory(ranges, comparator, mergePhase, log, dictionary, null);
+                } else {
+                    sortedRows = new SortedRows(finalRuns, keyRanges(finalRuns), comparator, plan.bufferSizeBytes,
+                            mergePhase, log, spillDirs, dictionary, null);
+                }
+                // the runs open at once
+                metrics.mergeFanIn(RunKeyRange.largest(sortedRows.stretches));
+                metrics.mergeStretches += sortedRows.stretches.size();
+                sorted.add(sortedRows);
+                sortedRows.keepRuns = checkpoint != null;
+                sortedRows.onClose = () -> {
+                    if (checkpoint != null && sortedRows.done) {
+                        for (File run : finalRuns) {
+                            run.delete();
+                        }
+                        checkpoint.delete();
+                    }
+                    if (open.decrementAndGet() > 0) {
+                        return;
+                    }
+                    mergePhase.end();
+                    spillDirs.close();
+                    if (spillDirs.arena != null) {
+                        metrics.offHeapPeakBytes = spillDirs.arena.peakBytes;
+                    }
+                    metrics.stop();
+                    // the history plans run files, an in-memory sort has none
+                    if (limits.useHistory && !plan.inMemory) {
+                        SortPlanner.recordRun(metrics, plan, log);
+                    }
+                };
+            }
+            return sorted;
+        } catch (IOException e) {
+            metrics.stop();
+            spillDirs.close();
+            deleteRuns(runs, manifest);
+            e.printStackTrace();
+            throw new RuntimeException("Cannot open " + input.name);
+        } catch (RuntimeException e) {
+            metrics.stop();
+            spillDirs.close();
+            deleteRuns(runs, manifest);
+            throw e;
+        }
+    }
+
+    // unless they are kept to resume
+    private void deleteRuns(List<File> runs, SortManifest manifest) {
+        if (manifest != null) {
+            log.println("Intermediate files kept to resume, see " + manifest.file.getPath());
+            return;
+        }
+        for (File run : runs) {
+            run.delete();
+        }
+    }
+
+    public void sort(InputSource input, Consumer<String[]> consumer) {
+        try (SortedRows rows = sort(input)) {
+            while (rows.hasNext()) {
+                consumer.accept(rows.next());
+            }
+        }
+    }
+
+    // writes the sorted rows to output (block gzip if named .gz), prints the phase summary and writes the
+    // metrics report next to it
+    public void sort(InputSource input, File output) {
+        sort(input, Collections.singletonList(output));
+    }
+
+    // the rows in the order of every key spec to its own output, all written at once
+    public void sort(InputSource input, List<File> outputs) {
+        if (outputs.size() != keySpecs.size()) {
+            throw new RuntimeException("One output per key spec is needed, got " + outputs.size() + " for "
+                    + keySpecs.size());
+        }
+        for (File output : outputs) {
+            output.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        if (limits.tagSort) {
+            File output = outputs.get(0);
+            try (OutputStream out = new FileOutputStream(output)) {
+                tagSort(input, out, gzipOutput || output.getName().endsWith(InputSource.GZIP_EXTENSION),
+                        columnarOutput || output.getName().endsWith(ColumnarWriter.EXTENSION));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error writing " + output.getPath());
+            }
+        } else {
+            writeAll(input, outputs);
+        }
+        report(input, outputs.get(0).getAbsoluteFile().getParentFile());
+        for (File output : outputs) {
+            log.println("Sorted file: " + output.getPath());
+        }
+        if (limits.verify) {
+            verify(outputs);
+        }
+    }
+
+    // the rows of every order written to their output, one thread each
+    private void writeAll(InputSource input, List<File> outputs) {
+        List<SortedRows> sorted = sortAll(input);
+        ExecutorService executorService = Executors.newFixedThreadPool(outputs.size());
+        try {
+            List<Future<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < outputs.size(); i++) {
+                File output = outputs.get(i);
+                SortedRows rows = sorted.get(i);
+                int order = i;
+                writes.add(executorService.submit(() -> {
+                    try (rows; OutputStream out = new FileOutputStream(output)) {
+                        writeRows(rows, rowKeySpecs.get(order), out, gzipOutput || output.getName().endsWith(InputSource.GZIP_EXTENSION),
+                                columnarOutput || output.getName().endsWith(ColumnarWriter.EXTENSION));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        throw new RuntimeException("Error writing " + output.getPath());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> write : writes) {
+                write.get();
+            }
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error writing sorted rows", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted writing sorted rows");
+        } finally {
+            executorService.shutdownNow();
+            for (SortedRows rows : sorted) {
+                rows.close();
+            }
+        }
+    }
+
+    // reads the outputs back and checks their order, in the key columns of the rows written
+    private void verify(List<File> outputs) {
+        for (int i = 0; i < outputs.size(); i++) {
+            SortVerifier verifier = new SortVerifier(rowKeySpecs.get(i), limits.numFileSorters != null
+                    ? limits.numFileSorters : Runtime.getRuntime().availableProcessors());
+            verifier.log = log;
+            if (!verifier.verify(outputs.get(i)).isSorted()) {
+                throw new RuntimeException("Sorted file " + outputs.get(i).getPath() + " is not sorted by "
+                        + keySpecs.get(i));
+            }
+        }
+    }
+
+    // streams the sorted rows to out as the merge produces them, out is flushed but not closed
+    public void sort(InputSource input, OutputStream out, File reportDir) {
+        if (limits.tagSort) {
+            try {
+                tagSort(input, out, gzipOutput, columnarOutput);
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error writing sorted rows");
+            }
+            report(input, reportDir);
+            return;
+        }
+        try (SortedRows rows = sort(input)) {
+            writeRows(rows, rowKeySpec, out, gzipOutput, columnarOutput);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error writing sorted rows");
+        }
+        report(input, reportDir);
+    }
+
+    // the rows of one plain file sorted by their tags and copied to out as they are, see TagSorter
+    private void tagSort(InputSource input, OutputStream out, boolean gzip, boolean columnar) throws IOException {
+        if (keySpecs.size() > 1 || input.files.size() != 1 || !input.gzipFiles.isEmpty()) {
+            throw new RuntimeException("Tag sort copies the rows from one plain file (not gzip, not a stream), "
+                    + "by one key spec");
+        }
+        if (limits.select != null || columnar || limits.offHeap || limits.dictionary || limits.checkpoint) {
+            throw new RuntimeException("Tag sort copies the rows as they are: not with select, columnar output, "
+                    + "off-heap runs, dictionaries or checkpoints");
+        }
+        rowKeySpecs = Collections.singletonList(keySpec);
+        rowKeySpec = keySpec;
+        File workDir = limits.workDir != null ? limits.workDir : defaultWorkDir(input);
+        workDir.mkdirs();
+        SpillDirs spillDirs = new SpillDirs(limits.tmpDirs.isEmpty()
+                ? Collections.singletonList(workDir) : limits.tmpDirs, limits.placeByFreeSpace, limits.directIo);
+        manifest = null;
+        dictionary = null;
+        keyRanges.clear();
+        metrics = new SortMetrics(input.name);
+        plan = new SortPlanner(input, spillDirs.first(), limits, log).plan();
+        plan.print(log);
+        log.println("Tag sort: keys and row places sorted, rows copied from " + input.file.getPath());
+
+        metrics.start();
+        try {
+            OutputStream sortedOut = gzip ? new BlockGzipOutputStream(out, plan.numFileSorters, false) : out;
+            new TagSorter(keySpec, limits, plan, spillDirs, metrics, log).sort(input.file, input.hasHeader, sortedOut);
+            if (gzip) {
+                // ends the last block and writes the end of file block, out stays open
+                sortedOut.close();
+            }
+        } finally {
+            // not in the history: the planner sizes runs of rows, not of tags
+            metrics.stop();
+            spillDirs.close();
+        }
+    }
+
+    // rows sorted by keySpec, which the columnar output records
+    private void writeRows(SortedRows rows, KeySpec keySpec, OutputStream out, boolean gzip, boolean columnar)
+            throws IOException {
+        if (columnar) {
+            if (gzip) {
+                throw new RuntimeException("Columnar output is not gzipped, its columns are encoded already");
+            }
+            writeColumns(rows, keySpec, out);
+            return;
+        }
+        try {
+            OutputStream sortedOut = gzip ? new BlockGzipOutputStream(out, plan.numFileSorters, false) : out;
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(sortedOut, CHARSET), plan.bufferSizeBytes);
+            SortMetrics.Phase phase = metrics.phase(SortMetrics.MERGE);
+            rows.copyTo = sortedOut;
+            rows.flushBeforeCopy = writer;
+            while (rows.hasNext()) {
+                String sortedLine = String.join(CSV_SPLIT_BY, rows.next());
+                writer.write(sortedLine);
+                writer.write('\n');
+                phase.bytesWritten.add(sortedLine.length() + 1);
+            }
+            writer.flush();
+            metrics.copied(rows.runsCopied, rows.bytesCopied);
+            if (gzip) {
+                // ends the last block and writes the end of file block, out stays open
+                sortedOut.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // the output is incomplete, a checkpointed sort keeps its last runs
+            rows.done = false;
+            throw e;
+        }
+    }
+
+    // column blocks, the rows of disjoint runs are not copied as bytes since they are not csv lines here
+    private void writeColumns(SortedRows rows, KeySpec keySpec, OutputStream out) throws IOException {
+        try {
+            ColumnarWriter writer = new ColumnarWriter(new BufferedOutputStream(out, plan.bufferSizeBytes),
+                    keySpec, ColumnarWriter.BLOCK_ROWS);
+            while (rows.hasNext()) {
+                writer.write(rows.next());
+            }
+            writer.finish();
+            metrics.phase(SortMetrics.MERGE).bytesWritten.add(writer.offset);
+        } catch (IOException | RuntimeException e) {
+            rows.done = false;
+            throw e;
+        }
+    }
+
+    // prints the phase summary and writes the metrics report
+    private void report(InputSource input, File reportDir) {
+        metrics.printSummary(log);
+        String name = InputSource.stripGzipExtension(input.name).replace(CSV_EXTENSION, "");
+        File report = new File(reportDir, "metrics-" + name + ".json");
+        metrics.writeReport(report);
+        log.println("Metrics report: " + report.getPath());
+    }
+
+    static File defaultWorkDir(InputSource input) {
+        if (input.file == null) {
+            return new File(System.getProperty("java.io.tmpdir"), "sortlargefile-" + ProcessHandle.current().pid());
+        }
+        String path = InputSource.stripGzipExtension(input.file.getPath());
+        return new File(path.replaceAll(CSV_EXTENSION, "") + "-result/");
+    }
+
+    // a file cut into ranges of at most the run size
+    static List<RunSource> byteRanges(File file, boolean hasHeader, SortPlanner.Plan plan) {
+        List<RunSource> sources = new ArrayList<>();
+        long size = file.length();
+        long numRanges = Math.max(1, (size + plan.runBytes - 1) / Math.max(1, plan.runBytes));
+        for (long i = 0; i < numRanges; i++) {
+            sources.add(new RunSource(file, size * i / numRanges, size * (i + 1) / numRanges,
+                    i == 0 && hasHeader, false));
+        }
+        return sources;
+    }
+
+    // spills br into run files of the run size, closes br
+    private void splitInput(BufferedReader br, boolean hasHeader, SpillDirs spillDirs, SortPlanner.Plan plan,
+                            List<RunSource> sources, List<File> runs, SortMetrics.Phase phase) {
+        String line;
+        Writer writer = null;
+        File file = null;
+        try {
+            // remove the first line with headers in documents file
+            if (hasHeader) {
+                line = br.readLine();
+                if (line != null) {
+                    phase.bytesRead.add(line.length() + 1);
+                }
+            }
+
+            long numBytesWritten = 0;
+            long rowsRejected = 0;
+            long rowsKept = 0;
+            // rows are filtered on their bytes as RangeLineReader does, only the rows kept are split
+            ByteScanner scanner = ByteScanner.get();
+            ByteScanner.Positions commas = new ByteScanner.Positions();
+            while ((line = br.readLine()) != null) {
+                phase.bytesRead.add(line.length() + 1);
+                if (limits.where != null) {
+                    byte[] bytes = line.getBytes(CHARSET);
+                    if (!limits.where.accept(bytes, bytes.length, scanner, commas)) {
+                        rowsRejected++;
+                        continue;
+                    }
+                    rowsKept++;
+                }
+                if (limits.select != null) {
+                    line = String.join(CSV_SPLIT_BY, select(line.split(CSV_SPLIT_BY, -1), limits.select));
+                }
+                if (writer == null) {
+                    file = spillDirs.newFile("spill-" + (runs.size() + 1) + CSV_EXTENSION, plan.runBytes);
+                    runs.add(file);
+                    writer = spillDirs.writer(file, plan.bufferSizeBytes);
+                    numBytesWritten = 0;
+                }
+
+                writer.write(line);
+                writer.write('\n');
+                numBytesWritten += line.length() + 1;
+                phase.rows.increment();
+                phase.bytesWritten.add(line.length() + 1);
+                metrics.spillBytes.add(line.length() + 1);
+
+                if (numBytesWritten > plan.runBytes) {
+                    writer.close();
+                    writer = null;
+                    sources.add(spilled(file, spillDirs));
+                }
+            }
+            metrics.filtered(limits.where, rowsRejected, rowsKept);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot open file");
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error processing file");
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                    sources.add(spilled(file, spillDirs));
+                }
+                br.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error processing file");
+            }
+        }
+    }
+
+    // the select columns of row, in that order
+    static String[] select(String[] row, int[] select) {
+        String[] selected = new String[select.length];
+        for (int i = 0; i < select.length; i++) {
+            if (select[i] >= row.length) {
+                throw new RuntimeException("Column " + select[i] + " is not in a row of " + row.length + " columns");
+            }
+            selected[i] = row[select[i]];
+        }
+        return selected;
+    }
+
+    private static RunSource spilled(File file, SpillDirs spillDirs) {
+        RunSource source = new RunSource(file, 0, file.length(), false, true);
+        if (spillDirs.checksums != null) {
+            source.checksum = spillDirs.checksum(file);
+        }
+        return source;
+    }
+
+    // runsByOrder becomes the sorted runs of every order, in the order of the sources, and runs all of them; in
+    // memory the sorters keep them instead
+    private List<RunSorter> sortRuns(List<RunSource> sources, SpillDirs spillDirs, SortPlanner.Plan plan,
+                                     List<File> runs, List<List<File>> runsByOrder, SortMetrics.Phase phase) {
+        List<RunSorter> sorters = new ArrayList<>();
+        for (int order = 0; order < keySpecs.size(); order++) {
+            runsByOrder.add(new ArrayList<>());
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            RunSource source = sources.get(i);
+            if (manifest != null && manifest.isSorted(i)) {
+                File run = manifest.run(i);
+                runsByOrder.get(0).add(run);
+                metrics.addRun(run.length());
+                continue;
+            }
+            if (plan.inMemory) {
+                sorters.add(new RunSorter(i, source, null, spillDirs, plan, phase));
+                continue;
+            }
+            File[] orderRuns = new File[keySpecs.size()];
+            for (int order = 0; order < orderRuns.length; order++) {
+                // a run split from a stream is sorted in place, in the first order
+                orderRuns[order] = order == 0 && source.spilled ? source.file
+                        : spillDirs.newFile("run-" + (i + 1) + (order == 0 ? "" : "-order-" + (order + 1))
+                        + CSV_EXTENSION, source.end - source.start);
+                runsByOrder.get(order).add(orderRuns[order]);
+            }
+            sorters.add(new RunSorter(i, source, orderRuns, spillDirs, plan, phase));
+        }
+        runs.clear();
+        for (List<File> orderRuns : runsByOrder) {
+            runs.addAll(orderRuns);
+        }
+
+        ExecutorService executorService = metrics.newSortExecutor(Math.max(1, plan.numFileSorters));
+        CompletionService<RunSorter.Result> completionService = new ExecutorCompletionService<>(executorService);
+        try {
+            int runNum = 0;
+            int runsSorted = 0;
+            // keep at most numFileSorters runs in memory
+            while (runNum < plan.numFileSorters && runNum < sorters.size()) {
+                completionService.submit(sorters.get(runNum++));
+                metrics.sortTaskSubmitted();
+            }
+
+            while (runsSorted < sorters.size()) {
+                try {
+                    RunSorter.Result result = completionService.take().get();
+                    runsSorted++;
+                    metrics.sortTaskCompleted(result.timeToSortMs);
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    throw new RuntimeException("Error sorting file", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted sorting files");
+                }
+
+                if (runNum < sorters.size()) {
+                    completionService.submit(sorters.get(runNum++));
+                    metrics.sortTaskSubmitted();
+                }
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+        return sorters;
+    }
+
+    // more overlapping runs than the fan-in: merge groups of runs of the same stretch into bigger runs, in
+    // parallel, until one pass is left; runs overlapping no other are left alone
+    private List<File> mergeDown(List<File> runs, int order, SpillDirs spillDirs, SortPlanner.Plan plan,
+                                 SortMetrics.Phase phase) {
+        Comparator<String[]> comparator = rowKeySpecs.get(order).comparator(metrics.comparisons);
+        List<List<Integer>> stretches = SortedRows.stretches(runs.size(), keyRanges(runs), comparator);
+        int pass = 1;
+        while (RunKeyRange.largest(stretches) > plan.mergeFanIn) {
+            // a merged run takes the place of the first run of its group, so equal keys keep their input order
+            List<File> nextRuns = new ArrayList<>(runs);
+            List<Callable<Void>> merges = new ArrayList<>();
+            int groupNum = 0;
+            for (List<Integer> stretch : stretches) {
+                if (stretch.size() <= plan.mergeFanIn) {
+                    continue;
+                }
+                for (int i = 0; i < stretch.size(); i += plan.mergeFanIn) {
+                    List<Integer> indexes = stretch.subList(i, Math.min(i + plan.mergeFanIn, stretch.size()));
+                    if (indexes.size() == 1) {
+                        continue;
+                    }
+                    List<File> group = new ArrayList<>();
+                    for (int index : indexes) {
+                        group.add(runs.get(index));
+                        nextRuns.set(index, null);
+                    }
+                    String name = "merge-" + (order == 0 ? "" : "order-" + (order + 1) + "-") + pass + "-"
+                            + groupNum++;
+                    File done = manifest != null ? manifest.merge(name) : null;
+                    if (done != null) {
+                        nextRuns.set(indexes.get(0), done);
+                        continue;
+                    }
+                    long groupBytes = 0;
+                    for (File run : group) {
+                        groupBytes += run.length();
+                    }
+                    File merged = spillDirs.newFile(name + CSV_EXTENSION, groupBytes);
+                    nextRuns.set(indexes.get(0), merged);
+                    merges.add(() -> {
+                        mergeRuns(group, rowKeySpecs.get(order), merged, spillDirs, plan, phase);
+                        if (manifest != null) {
+                            // the inputs go once the merge is recorded
+                            manifest.runsMerged(name, merged, spillDirs.checksum(merged), group);
+                            for (File run : group) {
+                                run.delete();
+                            }
+                        }
+                        return null;
+                    });
+                }
+            }
+
+            ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, plan.numFileSorters));
+            try {
+                for (Future<Void> future : executorService.invokeAll(merges)) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error merging files", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted merging files");
+            } finally {
+                executorService.shutdownNow();
+            }
+            nextRuns.removeIf(Objects::isNull);
+            runs = nextRuns;
+            stretches = SortedRows.stretches(runs.size(), keyRanges(runs), comparator);
+            pass++;
+        }
+        return runs;
+    }
+
+    // the key range of every run, null if a checkpointed sort, whose merges are the same on every try
+    private List<RunKeyRange> keyRanges(List<File> runs) {
+        if (manifest != null) {
+            return null;
+        }
+        List<RunKeyRange> ranges = new ArrayList<>();
+        for (File run : runs) {
+            ranges.add(keyRanges.get(run));
+        }
+        return ranges;
+    }
+
+    private void mergeRuns(List<File> runs, KeySpec rowKeySpec, File output, SpillDirs spillDirs, SortPlanner.Plan plan,
+                           SortMetrics.Phase phase) throws IOException {
+        try (SortedRows rows = new SortedRows(runs, keyRanges(runs), rowKeySpec.comparator(metrics.comparisons),
+                plan.bufferSizeBytes, phase, log, spillDirs, dictionary, null);
+             OutputStream out = spillDirs.output(output, plan.bufferSizeBytes);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET), plan.bufferSizeBytes)) {
+            rows.countRows = false;
+            rows.keepRuns = manifest != null;
+            // the runs of the group that overlap no other one in it are copied
+            rows.copyTo = out;
+            rows.flushBeforeCopy = writer;
+            long bytesWritten = 0;
+            while (rows.hasNext()) {
+                String sortedLine = String.join(CSV_SPLIT_BY, rows.next());
+                writer.write(sortedLine);
+                writer.write('\n');
+                bytesWritten += sortedLine.length() + 1;
+            }
+            writer.flush();
+            phase.bytesWritten.add(bytesWritten);
+            metrics.spillBytes.add(bytesWritten + rows.bytesCopied);
+            metrics.copied(rows.runsCopied, rows.bytesCopied);
+        }
+        RunKeyRange range = RunKeyRange.union(keyRanges(runs), rowKeySpec.comparator(metrics.comparisons));
+        if (range != null) {
+            keyRanges.put(output, range);
+        }
+    }
+
+    // a byte range of an input file, or a whole run file split from a stream (spilled, sorted in place)
+    static class RunSource {
+        File file;
+        long start;
+        long end;
+        boolean skipHeader;
+        boolean spilled;
+        // CRC32 of a spilled file as split, for a checkpointed sort
+        long checksum;
+
+        RunSource(File file, long start, long end, boolean skipHeader, boolean spilled) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.skipHeader = skipHeader;
+            this.spilled = spilled;
+        }
+
+        // the rows of the source after its header, filtered and cut down to the select columns of the limits
+        // unless spilled (already done)
+        RangeLineReader open(int bufferSizeBytes, SortLimits limits) throws IOException {
+            RangeLineReader reader = new RangeLineReader(file, start, end, bufferSizeBytes);
+            if (skipHeader) {
+                reader.readLineInto();
+            }
+            if (!spilled) {
+                reader.filter = limits.where;
+                reader.select = limits.select;
+            }
+            return reader;
+        }
+    }
+
+    private class RunSorter implements Callable<RunSorter.Result> {
+        int index;
+        RunSource source;
+        // one per order, null in memory
+        File[] runs;
+        SpillDirs spillDirs;
+        SortPlanner.Plan plan;
+        SortMetrics.Phase phase;
+        // the sorted rows of every order, without run files
+        List<List<String[]>> sorted = new ArrayList<>();
+
+        RunSorter(int index, RunSource source, File[] runs, SpillDirs spillDirs, SortPlanner.Plan plan,
+                  SortMetrics.Phase phase) {
+            this.index = index;
+            this.source = source;
+            this.runs = runs;
+            this.spillDirs = spillDirs;
+            this.plan = plan;
+            this.phase = phase;
+        }
+
+        @Override
+        public Result call() throws IOException {
+            long start = System.currentTimeMillis();
+            if (spillDirs.arena != null) {
+                OffHeapRunSorter sorter = new OffHeapRunSorter(rowKeySpec, metrics.comparisons, spillDirs.arena,
+                        limits.radixSort);
+                sorter.limits = limits;
+                long bytesWritten = sorter.sort(source, runs[0], spillDirs, plan.bufferSizeBytes, phase);
+                metrics.inMemorySortNanos.add(sorter.sortNanos);
+                metrics.filtered(limits.where, sorter.rowsRejected, sorter.rowsKept);
+                phase.bytesWritten.add(bytesWritten);
+                metrics.spillBytes.add(bytesWritten);
+                metrics.addRun(bytesWritten);
+                checkpoint();
+                return new Result(System.currentTimeMillis() - start);
+            }
+
+            List<String[]> rows = new ArrayList<>();
+            // encoded as read, so the sampled values are shared from the start
+            List<KeyDictionary.Encoded> encodedRows = dictionary != null && !limits.radixSort ? new ArrayList<>() : null;
+
+            try (RangeLineReader reader = source.open(plan.bufferSizeBytes, limits)) {
+                String[] row;
+                long rowsKept = 0;
+                while ((row = reader.readColumns()) != null) {
+                    if (encodedRows != null) {
+                        encodedRows.add(dictionary.encode(row));
+                    } else {
+                        rows.add(row);
+                    }
+                    rowsKept++;
+                }
+                phase.rows.add(rowsKept);
+                phase.bytesRead.add(reader.bytesRead);
+                metrics.filtered(reader.filter, reader.rowsRejected, rowsKept);
+            }
+
+            long sortStart = System.nanoTime();
+            if (encodedRows != null) {
+                encodedRows.sort(dictionary);
+                sorted.add(KeyDictionary.rows(encodedRows));
+                encodedRows = null;
+            } else {
+                for (int order = 0; order < rowKeySpecs.size(); order++) {
+                    KeySpec orderKeySpec = rowKeySpecs.get(order);
+                    // every order sorts the rows as read, the last one in place
+                    List<String[]> orderRows = order < rowKeySpecs.size() - 1 ? new ArrayList<>(rows) : rows;
+                    if (limits.radixSort) {
+                        orderRows = new RadixSorter(metrics.comparisons).sort(orderRows, orderKeySpec);
+                    } else {
+                        orderRows = orderKeySpec.comparator(metrics.comparisons).sort(orderRows);
+                    }
+                    sorted.add(orderRows);
+                }
+            }
+            rows = null;
+            metrics.inMemorySortNanos.add(System.nanoTime() - sortStart);
+            if (runs == null) {
+                return new Result(System.currentTimeMillis() - start);
+            }
+
+            for (int order = 0; order < runs.length; order++) {
+                long bytesWritten = 0;
+                try (BufferedWriter writer = spillDirs.writer(runs[order], plan.bufferSizeBytes)) {
+                    for (String[] row : sorted.get(order)) {
+                        String sortedLine = String.join(CSV_SPLIT_BY, row);
+                        writer.write(sortedLine);
+                        writer.write('\n');
+                        bytesWritten += sortedLine.length() + 1;
+                    }
+                }
+                keyRanges.put(runs[order], RunKeyRange.of(sorted.get(order)));
+                // written, the rows can go
+                sorted.set(order, null);
+                phase.bytesWritten.add(bytesWritten);
+                metrics.spillBytes.add(bytesWritten);
+                metrics.addRun(bytesWritten);
+            }
+            checkpoint();
+
+            return new Result(System.currentTimeMillis() - start);
+        }
+
+        private void checkpoint() {
+            if (manifest != null) {
+                manifest.runSorted(index, runs[0], spillDirs.checksum(runs[0]));
+            }
+        }
+
+        class Result {
+            long timeToSortMs;
+
+            Result(long timeToSortMs) {
+                this.timeToSortMs = timeToSortMs;
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Where the rows to sort come from: one or more files, each with its own header line, or a stream of
+    unknown size (sizeBytes -1). Files can be read by byte ranges, streams only from start to end.
+    Gzip files and streams are read from start to end too, block gzip inflated in parallel; the size of a gzip
+    file is estimated as GZIP_EXPANSION times its compressed size.
+ */
+public class InputSource {
+    static String STDIN = "-";
+    static String GZIP_EXTENSION = ".gz";
+    static int GZIP_EXPANSION = 4;
+
+    String name;
+    File file;
+    List<File> files = new ArrayList<>();
+    List<File> gzipFiles = new ArrayList<>();
+    InputStream stream;
+    long sizeBytes;
+    boolean hasHeader = true;
+
+    public InputSource(String name, File file, long sizeBytes) {
+        this.name = name;
+        this.file = file;
+        this.sizeBytes = sizeBytes;
+        if (file != null) {
+            files.add(file);
+        }
+    }
+
+    public static InputSource stream(String name, InputStream stream) {
+        InputSource input = new InputSource(name, null, -1);
+        input.stream = stream;
+        return input;
+    }
+
+    public static InputSource stdin() {
+        return stream("stdin", System.in);
+    }
+
+    // "-" is stdin, names with * ? [ or { are globs
+    public static InputSource of(String... fileNames) {
+        if (fileNames.length == 1 && STDIN.equals(fileNames[0])) {
+            return stdin();
+        }
+        List<File> files = new ArrayList<>();
+        for (String fileName : fileNames) {
+            if (STDIN.equals(fileName)) {
+                throw new RuntimeException("stdin cannot be sorted together with files");
+            }
+            files.addAll(isGlob(fileName) ? glob(fileName) : Collections.singletonList(new File(fileName)));
+        }
+        return files(files);
+    }
+
+    public static InputSource file(String fileName) {
+        return files(Collections.singletonList(new File(fileName)));
+    }
+
+    public static InputSource files(List<File> files) {
+        if (files.isEmpty()) {
+            throw new RuntimeException("No files to sort");
+        }
+        long sizeBytes = 0;
+        List<File> gzipFiles = new ArrayList<>();
+        for (File file : files) {
+            if (!file.isFile()) {
+                throw new RuntimeException("Cannot open file " + file.getPath());
+            }
+            if (BlockGzipInputStream.isGzip(file)) {
+                gzipFiles.add(file);
+                sizeBytes += file.length() * GZIP_EXPANSION;
+            } else {
+                sizeBytes += file.length();
+            }
+        }
+
+        File first = files.get(0);
+        String name = first.getName();
+        if (files.size() > 1) {
+            name = stripGzipExtension(name);
+            int dot = name.lastIndexOf('.');
+            String extension = dot > 0 ? name.substring(dot) : "";
+            name = (dot > 0 ? name.substring(0, dot) : name) + "-and-" + (files.size() - 1) + "-more" + extension;
+        }
+        InputSource input = new InputSource(name, first, sizeBytes);
+        input.files = new ArrayList<>(files);
+        input.gzipFiles = gzipFiles;
+        return input;
+    }
+
+    static boolean isGlob(String fileName) {
+        return fileName.indexOf('*') >= 0 || fileName.indexOf('?') >= 0 || fileName.indexOf('[') >= 0
+                || fileName.indexOf('{') >= 0;
+    }
+
+    // only the last path element may be a pattern
+    static List<File> glob(String pattern) {
+        File patternFile = new File(pattern);
+        File dir = patternFile.getAbsoluteFile().getParentFile();
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + patternFile.getName());
+        List<File> files = new ArrayList<>();
+        File[] candidates = dir.listFiles();
+        if (candidates != null) {
+            for (File candidate : candidates) {
+                if (candidate.isFile() && matcher.matches(Paths.get(candidate.getName()))) {
+                    files.add(new File(patternFile.getParentFile(), candidate.getName()));
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            throw new RuntimeException("No files match " + pattern);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    static String stripGzipExtension(String fileName) {
+        return fileName.endsWith(GZIP_EXTENSION)
+                ? fileName.substring(0, fileName.length() - GZIP_EXTENSION.length()) : fileName;
+    }
+
+    boolean isSeekable() {
+        return stream == null;
+    }
+
+    boolean isGzip(File file) {
+        return gzipFiles.contains(file);
+    }
+
+    // streams are read once from start to end, files by byte ranges with RangeLineReader
+    public BufferedReader open(int bufferSizeBytes, int threads) throws IOException {
+        if (stream == null) {
+            throw new RuntimeException("Files are read by byte ranges");
+        }
+        return reader(stream, bufferSizeBytes, threads);
+    }
+
+    // gzip files are read from start to end
+    public BufferedReader open(File gzipFile, int bufferSizeBytes, int threads) throws IOException {
+        return reader(new FileInputStream(gzipFile), bufferSizeBytes, threads);
+    }
+
+    private static BufferedReader reader(InputStream in, int bufferSizeBytes, int threads) throws IOException {
+        return new BufferedReader(new InputStreamReader(BlockGzipInputStream.open(in, threads), ExternalSorter.CHARSET), bufferSizeBytes);
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Order preserving integer codes for low cardinality key columns (event_type, brand, ...), so rows are
+    sorted and merged on one long instead of comparing their strings character by character.
+
+    The dictionary is the sorted distinct values of the leading key columns seen in a sample of the runs,
+    while a column has at most MAX_VALUES of them and the codes of all the columns fit in a long:
+
+    a) a sampled value at index i has code 2 * i + 2, and its row keeps the dictionary's String, so the
+       copies split from every line are garbage right away instead of living as long as the run.
+    b) a value missing from the sample has the odd code 2 * i + 1, i its insertion point: between its
+       neighbours, but equal to the other missing values there. The codes of the columns after it are
+       left 0, and rows whose codes are equal compare their strings from that column on.
+
+    So the order is always the order of ColumnsComparator; the sample only decides how often the strings
+    are still compared (dictionaryFallbacks).
+ */
+public class KeyDictionary implements Comparator<KeyDictionary.Encoded> {
+    static int MAX_VALUES = 1 << 16;
+    static int SAMPLE_ROWS = 100000;
+    static int MIN_SAMPLE_ROWS_PER_RUN = 1000;
+
+    int[] columns;
+    // sorted values of the first values.length key columns
+    String[][] values;
+    int[] bits;
+    LongAdder comparisons;
+    LongAdder fallbacks;
+
+    KeyDictionary(int[] columns, String[][] values, LongAdder comparisons, LongAdder fallbacks) {
+        this.columns = columns;
+        this.values = values;
+        this.comparisons = comparisons;
+        this.fallbacks = fallbacks;
+        this.bits = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bits[i] = codeBits(values[i].length);
+        }
+    }
+
+    // codes 0 (null) to 2 * size + 1
+    private static int codeBits(int size) {
+        return Long.SIZE - Long.numberOfLeadingZeros(2L * size + 1);
+    }
+
+    // null if the first key column has too many values to be worth a dictionary
+    static KeyDictionary sample(KeySpec keySpec, List<ExternalSorter.RunSource> sources, SortLimits limits,
+                                int bufferSizeBytes, SortMetrics metrics) throws IOException {
+        int[] columns = keySpec.columns;
+        List<Set<String>> distinct = new ArrayList<>();
+        for (int i = 0; i < columns.length; i++) {
+            distinct.add(new HashSet<>());
+        }
+        int rowsPerRun = Math.max(MIN_SAMPLE_ROWS_PER_RUN, SAMPLE_ROWS / Math.max(1, sources.size()));
+        for (ExternalSorter.RunSource source : sources) {
+            try (RangeLineReader reader = source.open(bufferSizeBytes, limits)) {
+                String line;
+                for (int rows = 0; rows < rowsPerRun && (line = reader.readLine()) != null; rows++) {
+                    String[] row = line.split(ExternalSorter.CSV_SPLIT_BY, -1);
+                    for (int i = 0; i < columns.length; i++) {
+                        Set<String> columnValues = distinct.get(i);
+                        // null once the column has too many values
+                        if (columnValues != null && columns[i] < row.length) {
+                            columnValues.add(row[columns[i]]);
+                            if (columnValues.size() > MAX_VALUES) {
+                                distinct.set(i, null);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        List<String[]> values = new ArrayList<>();
+        int usedBits = 0;
+        for (int i = 0; i < columns.length && distinct.get(i) != null; i++) {
+            usedBits += codeBits(distinct.get(i).size());
+            // codes stay positive longs
+            if (usedBits > Long.SIZE - 1) {
+                break;
+            }
+            String[] sorted = distinct.get(i).toArray(new String[0]);
+            Arrays.sort(sorted);
+            values.add(sorted);
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        return new KeyDictionary(columns, values.toArray(new String[0][]), metrics.comparisons,
+                metrics.dictionaryFallbacks);
+    }
+
+    public Encoded encode(String[] row) {
+        return encode(row, new Encoded());
+    }
+
+    // the dictionary's Strings replace the row's sampled values
+    public Encoded encode(String[] row, Encoded into) {
+        long code = 0;
+        int exactColumns = 0;
+        boolean exact = true;
+        for (int i = 0; i < values.length; i++) {
+            code <<= bits[i];
+            String value = row[columns[i]];
+            long columnCode = 0;
+            if (value != null) {
+                int index = Arrays.binarySearch(values[i], value);
+                if (index >= 0) {
+                    row[columns[i]] = values[i][index];
+                    columnCode = 2L * index + 2;
+                } else {
+                    columnCode = 2L * (-index - 1) + 1;
+                }
+            }
+            if (exact) {
+                code |= columnCode;
+                exact = (columnCode & 1) == 0;
+                if (exact) {
+                    exactColumns++;
+                }
+            }
+        }
+        into.row = row;
+        into.code = code;
+        into.exactColumns = exactColumns;
+        return into;
+    }
+
+    @Override
+    public int compare(Encoded one, Encoded two) {
+        comparisons.increment();
+        if (one.row.length != two.row.length) {
+            throw new RuntimeException("Cannot compare columns of different sizes: "
+                    + String.join(ExternalSorter.CSV_SPLIT_BY, one.row) + " and "
+                    + String.join(ExternalSorter.CSV_SPLIT_BY, two.row));
+        }
+        int comparison = Long.compare(one.code, two.code);
+        // equal codes have the same exact columns
+        if (comparison != 0 || one.exactColumns == columns.length) {
+            return comparison;
+        }
+        fallbacks.increment();
+        for (int i = one.exactColumns; i < columns.length; i++) {
+            String columnOne = one.row[columns[i]];
+            String columnTwo = two.row[columns[i]];
+            if (columnOne == null || columnTwo == null) {
+                comparison = columnOne == null ? (columnTwo == null ? 0 : -1) : 1;
+            } else {
+                comparison = columnOne.compareTo(columnTwo);
+            }
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    static List<String[]> rows(List<Encoded> encoded) {
+        List<String[]> rows = new ArrayList<>(encoded.size());
+        for (Encoded row : encoded) {
+            rows.add(row.row);
+        }
+        return rows;
+    }
+
+    public void print(PrintStream log) {
+        StringBuilder sb = new StringBuilder("Dictionary:");
+        for (int i = 0; i < values.length; i++) {
+            sb.append(i == 0 ? " " : ", ").append("column ").append(columns[i]).append(" ")
+                    .append(values[i].length).append(" values");
+        }
+        if (values.length < columns.length) {
+            sb.append(", columns from ").append(columns[values.length]).append(" compared as strings");
+        }
+        log.println(sb);
+    }
+
+    static class Encoded {
+        String[] row;
+        long code;
+        // leading key columns whose code is their value
+        int exactColumns;
+    }
+}
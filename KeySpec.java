@@ -0,0 +1,231 @@
+import java.nio.charset.StandardCharsets;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Columns to sort by, in order of precedence. A column compares its Strings as they are (UTF-16 code units),
+    or with a collation by the rules of a locale:
+
+    4:collate=de                  German order
+    4:collate=de:strength=primary German order ignoring accents and case
+
+    Collated columns are compared on their collation key bytes, computed once per row (see
+    ColumnsComparator.sortKey), not with the Collator at every comparison.
+ */
+public class KeySpec {
+    static String COLLATE = "collate=";
+    static String STRENGTH = "strength=";
+    static String[] STRENGTHS = {"primary", "secondary", "tertiary", "identical"};
+
+    int[] columns;
+    // per column the locale tag and strength of its collation, null if not collated
+    String[] collations;
+    String[] strengths;
+    // Collators are synchronized, every thread gets its own
+    private ThreadLocal<Collator[]> collators = ThreadLocal.withInitial(this::newCollators);
+
+    public KeySpec(int... columns) {
+        if (columns.length == 0) {
+            throw new RuntimeException("At least one column to sort by is needed");
+        }
+        this.columns = columns;
+        this.collations = new String[columns.length];
+        this.strengths = new String[columns.length];
+    }
+
+    // column numbers, each optionally followed by :collate=<locale> and :strength=<strength>
+    public static KeySpec parse(String[] values) {
+        int[] columns = new int[values.length];
+        String[] collations = new String[values.length];
+        String[] strengths = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            String[] parts = values[i].split(":");
+            columns[i] = Integer.valueOf(parts[0]);
+            for (int j = 1; j < parts.length; j++) {
+                if (parts[j].startsWith(COLLATE)) {
+                    collations[i] = parts[j].substring(COLLATE.length());
+                } else if (parts[j].startsWith(STRENGTH)) {
+                    strengths[i] = parts[j].substring(STRENGTH.length());
+                } else {
+                    throw new RuntimeException("Cannot parse key column " + values[i]
+                            + ", expected <column>[:collate=<locale>[:strength=<strength>]]");
+                }
+            }
+            if (strengths[i] != null && collations[i] == null) {
+                throw new RuntimeException("Key column " + values[i] + " has a strength but no collation");
+            }
+        }
+        KeySpec keySpec = new KeySpec(columns);
+        keySpec.collations = collations;
+        keySpec.strengths = strengths;
+        // unknown locales and strengths fail here rather than in a sorter thread
+        keySpec.newCollators();
+        return keySpec;
+    }
+
+    boolean isCollated() {
+        for (String collation : collations) {
+            if (collation != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Collator[] newCollators() {
+        if (!isCollated()) {
+            return null;
+        }
+        Collator[] collators = new Collator[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (collations[i] == null) {
+                continue;
+            }
+            Locale locale = Locale.forLanguageTag(collations[i]);
+            if (!hasCollator(locale)) {
+                throw new RuntimeException("Unknown locale " + collations[i] + " to collate column " + columns[i]);
+            }
+            collators[i] = Collator.getInstance(locale);
+            if (strengths[i] != null) {
+                int strength = -1;
+                for (int s = 0; s < STRENGTHS.length; s++) {
+                    if (STRENGTHS[s].equals(strengths[i])) {
+                        strength = s;
+                    }
+                }
+                if (strength < 0) {
+                    throw new RuntimeException("Unknown collation strength " + strengths[i] + ", expected one of "
+                            + String.join(" ", STRENGTHS));
+                }
+                // Collator.PRIMARY to Collator.IDENTICAL are 0 to 3
+                collators[i].setStrength(strength);
+            }
+        }
+        return collators;
+    }
+
+    // the language has rules, otherwise Collator.getInstance falls back to the root rules without saying so
+    private static boolean hasCollator(Locale locale) {
+        for (Locale available : Collator.getAvailableLocales()) {
+            if (!locale.getLanguage().isEmpty() && available.getLanguage().equals(locale.getLanguage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ColumnsComparator comparator(LongAdder comparisons) {
+        return new ColumnsComparator(columns, collators.get(), comparisons);
+    }
+
+    // the key columns as UTF-8 (in UTF-16 order, see utf16Order) joined by 0x00: compared as unsigned bytes
+    // they sort like the columns; collated columns are their collation keys, see encode(row, columns, collators)
+    public byte[] encode(String[] row) {
+        return encode(row, columns, collators.get());
+    }
+
+    // a collation key may contain 0x00, so in a collated column 0x00 is escaped as 0x00 0xff and the column
+    // ends with 0x00 0x00, still below any longer key
+    static byte[] encode(String[] row, int[] columns, Collator[] collators) {
+        byte[][] values = new byte[columns.length][];
+        int length = columns.length - 1;
+        for (int i = 0; i < columns.length; i++) {
+            String value = row[columns[i]];
+            if (collators != null && collators[i] != null) {
+                values[i] = escape(collators[i].getCollationKey(value == null ? "" : value).toByteArray());
+            } else {
+                values[i] = value == null ? new byte[0] : utf16Order(value.getBytes(StandardCharsets.UTF_8));
+            }
+            length += values[i].length;
+        }
+        byte[] key = new byte[length];
+        int position = 0;
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(values[i], 0, key, position, values[i].length);
+            position += values[i].length + 1;
+        }
+        return key;
+    }
+
+    // UTF-8 bytes compare in code point order, String.compareTo in UTF-16 order, where the characters above
+    // U+FFFF (surrogate pairs, lead bytes F0..F4) come before U+E000..U+FFFF (lead bytes EE and EF). Moving EE
+    // and EF above F4, to F8 and F9 which UTF-8 never uses, makes the bytes compare like the Strings. Only lead
+    // bytes can be EE or EF, continuation bytes are 80..BF.
+    static int utf16Order(int b) {
+        return b == 0xee ? 0xf8 : b == 0xef ? 0xf9 : b;
+    }
+
+    static byte[] utf16Order(byte[] utf8) {
+        for (int i = 0; i < utf8.length; i++) {
+            int b = utf8[i] & 0xff;
+            if (b >= 0xee) {
+                utf8[i] = (byte) utf16Order(b);
+            }
+        }
+        return utf8;
+    }
+
+    // 0x00 0xff for every 0x00 and a trailing 0x00, the separator after it makes the end 0x00 0x00
+    private static byte[] escape(byte[] bytes) {
+        int zeros = 0;
+        for (byte b : bytes) {
+            if (b == 0) {
+                zeros++;
+            }
+        }
+        byte[] escaped = new byte[bytes.length + zeros + 1];
+        int position = 0;
+        for (byte b : bytes) {
+            escaped[position++] = b;
+            if (b == 0) {
+                escaped[position++] = (byte) 0xff;
+            }
+        }
+        return escaped;
+    }
+
+    // the same keys in rows cut down to the select columns
+    public KeySpec select(int[] select) {
+        int[] selected = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            selected[i] = -1;
+            for (int j = 0; j < select.length && selected[i] < 0; j++) {
+                if (select[j] == columns[i]) {
+                    selected[i] = j;
+                }
+            }
+            if (selected[i] < 0) {
+                throw new RuntimeException("Column " + columns[i] + " is sorted by, so it must be selected");
+            }
+        }
+        KeySpec keySpec = new KeySpec(selected);
+        keySpec.collations = collations;
+        keySpec.strengths = strengths;
+        return keySpec;
+    }
+
+    // the first count columns
+    public KeySpec prefix(int count) {
+        KeySpec keySpec = new KeySpec(Arrays.copyOf(columns, count));
+        keySpec.collations = Arrays.copyOf(collations, count);
+        keySpec.strengths = Arrays.copyOf(strengths, count);
+        return keySpec;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            sb.append(i == 0 ? "" : ",").append(columns[i]);
+            if (collations[i] != null) {
+                sb.append(":").append(COLLATE).append(collations[i]);
+            }
+            if (strengths[i] != null) {
+                sb.append(":").append(STRENGTH).append(strengths[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
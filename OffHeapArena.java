@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/*
+    Direct (off-heap) memory of the off-heap sort path, pooled and reused from run to run and sort to sort:
+    direct buffers are only given back when the GC gets to them, so allocating one per run would grow the
+    process by every run sorted.
+
+    a) run buffers: the bytes of a run, its entries (two longs per row: key prefix and pointer) and the
+       scratch entries of the merge sort, see OffHeapRunSorter.
+    b) blocks: read buffers of the merge inputs.
+
+    Allocating more than maxBytes fails with a message instead of "OutOfMemoryError: Direct buffer memory".
+ */
+public class OffHeapArena {
+    static long MAX_RUN_BYTES = 1024L * 1024 * 1024;
+    static int ENTRY_LONGS = 2;
+
+    long maxBytes;
+    long allocatedBytes;
+    long peakBytes;
+    int blockSize;
+    Deque<RunBuffer> runBuffers = new ArrayDeque<>();
+    Deque<ByteBuffer> blocks = new ArrayDeque<>();
+
+    public OffHeapArena(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // -XX:MaxDirectMemorySize, which defaults to the max heap
+    static long maxDirectMemory() {
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-XX:MaxDirectMemorySize=")) {
+                return parseSize(argument.substring(argument.indexOf('=') + 1));
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    static long parseSize(String size) {
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : unit == 't' ? 40 : 0;
+        return Long.parseLong(shift == 0 ? size : size.substring(0, size.length() - 1)) << shift;
+    }
+
+    synchronized RunBuffer acquireRun(long dataBytes) {
+        RunBuffer runBuffer = runBuffers.isEmpty() ? new RunBuffer() : runBuffers.poll();
+        ensureData(runBuffer, dataBytes, 0);
+        return runBuffer;
+    }
+
+    synchronized void release(RunBuffer runBuffer) {
+        runBuffers.push(runBuffer);
+    }
+
+    // keeps data[0, used)
+    synchronized void ensureData(RunBuffer runBuffer, long dataBytes, int used) {
+        if (runBuffer.data != null && runBuffer.data.capacity() >= dataBytes) {
+            return;
+        }
+        if (dataBytes > MAX_RUN_BYTES) {
+            throw new RuntimeException("Run of " + dataBytes + " bytes is too big for an off-heap buffer, split into more files");
+        }
+        long capacity = Math.min(MAX_RUN_BYTES, Math.max(dataBytes, runBuffer.data == null ? 0
+                : 2L * runBuffer.data.capacity()));
+        ByteBuffer data = allocate(capacity);
+        if (runBuffer.data != null) {
+            ByteBuffer old = runBuffer.data.duplicate();
+            old.position(0).limit(used);
+            data.put(old);
+            free(runBuffer.data);
+        }
+        runBuffer.data = data;
+    }
+
+    // keeps the first entries
+    synchronized void ensureEntries(RunBuffer runBuffer, int entries, int used) {
+        if (runBuffer.entries != null && runBuffer.entries.capacity() >= (long) entries * ENTRY_LONGS) {
+            return;
+        }
+        long capacity = Math.max((long) entries * ENTRY_LONGS, runBuffer.entries == null ? 0
+                : 2L * runBuffer.entries.capacity());
+        if (capacity * Long.BYTES > Integer.MAX_VALUE) {
+            throw new RuntimeException("Too many rows for an off-heap run, split into more files");
+        }
+        LongBuffer entryBuffer = allocate(capacity * Long.BYTES).asLongBuffer();
+        LongBuffer scratch = allocate(capacity * Long.BYTES).asLongBuffer();
+        if (runBuffer.entries != null) {
+            LongBuffer old = runBuffer.entries.duplicate();
+            old.position(0).limit(used * ENTRY_LONGS);
+            entryBuffer.put(old);
+            free(runBuffer.entries.capacity() * (long) Long.BYTES);
+            free(runBuffer.scratch.capacity() * (long) Long.BYTES);
+        }
+        runBuffer.entries = entryBuffer;
+        runBuffer.scratch = scratch;
+    }
+
+    synchronized ByteBuffer acquireBlock(int size) {
+        if (size != blockSize) {
+            for (ByteBuffer block : blocks) {
+                free(block);
+            }
+            blocks.clear();
+            blockSize = size;
+        }
+        return blocks.isEmpty() ? allocate(size) : blocks.poll();
+    }
+
+    synchronized void release(ByteBuffer block) {
+        if (block.capacity() == blockSize) {
+            block.clear();
+            blocks.push(block);
+        } else {
+            free(block);
+        }
+    }
+
+    private ByteBuffer allocate(long bytes) {
+        if (allocatedBytes + bytes > maxBytes) {
+            throw new RuntimeException("Off-heap memory of " + maxBytes + " bytes exhausted, " + allocatedBytes
+                    + " in use, " + bytes + " more needed");
+        }
+        allocatedBytes += bytes;
+        peakBytes = Math.max(peakBytes, allocatedBytes);
+        return ByteBuffer.allocateDirect((int) bytes);
+    }
+
+    // no longer referenced, given back to the system when the GC collects it
+    private void free(ByteBuffer buffer) {
+        free(buffer.capacity());
+    }
+
+    private void free(long bytes) {
+        allocatedBytes -= bytes;
+    }
+
+    InputStream input(File file, int blockSize) throws IOException {
+        return new BlockInputStream(file, blockSize);
+    }
+
+    static class RunBuffer {
+        ByteBuffer data;
+        LongBuffer entries;
+        LongBuffer scratch;
+    }
+
+    // a merge input read through a pooled block
+    private class BlockInputStream extends InputStream {
+        FileChannel channel;
+        ByteBuffer block;
+
+        BlockInputStream(File file, int blockSize) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.block = acquireBlock(blockSize);
+            this.block.flip();
+        }
+
+        private boolean ensureData() throws IOException {
+            if (block.hasRemaining()) {
+                return true;
+            }
+            block.clear();
+            int read = channel.read(block);
+            block.flip();
+            return read > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureData() ? block.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            int chunk = Math.min(length, block.remaining());
+            block.get(bytes, offset, chunk);
+            return chunk;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (block != null) {
+                release(block);
+                block = null;
+            }
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Sorts a run without a String per row: the line bytes go into a pooled off-heap buffer and only the entries
+    are sorted, two longs per row, also off-heap:
+
+    a) key prefix: the first 8 bytes of the key columns joined by 0x00, compared unsigned. Most comparisons
+       end here without touching the rows.
+    b) pointer: offset of the line in the buffer << 32 | its length. Equal prefixes compare the key columns
+       of the lines, then the pointers, so rows with equal keys keep their input order.
+
+    With radix the entries are first MSD radix sorted on the bytes of the prefixes (see RadixSorter), only
+    buckets of equal prefixes or fewer than SMALL_BUCKET rows are left to comparisons.
+
+    Keys compare as their UTF-8 bytes with the lead bytes of U+E000..U+FFFF moved above those of characters
+    above U+FFFF (KeySpec.utf16Order), the order of String.compareTo the runs are merged in.
+ */
+public class OffHeapRunSorter {
+    static int INSERTION_SORT_ROWS = 16;
+
+    int[] columns;
+    LongAdder comparisons;
+    OffHeapArena arena;
+    OffHeapArena.RunBuffer runBuffer;
+    ByteBuffer data;
+    int numCols = -1;
+    ByteScanner scanner = ByteScanner.get();
+    ByteScanner.Positions commas = new ByteScanner.Positions();
+    boolean radix;
+    // for the filter and the columns kept, see RangeLineReader
+    SortLimits limits = new SortLimits();
+    long sortNanos;
+    long rowsKept;
+    long rowsRejected;
+    int[][] counts = new int[Long.BYTES][257];
+
+    public OffHeapRunSorter(KeySpec keySpec, LongAdder comparisons, OffHeapArena arena, boolean radix) {
+        this.columns = keySpec.columns;
+        this.comparisons = comparisons;
+        this.arena = arena;
+        this.radix = radix;
+    }
+
+    // sorts source into run, returns the bytes written
+    long sort(ExternalSorter.RunSource source, File run, SpillDirs spillDirs, int bufferSizeBytes,
+              SortMetrics.Phase phase) throws IOException {
+        runBuffer = arena.acquireRun(source.end - source.start + bufferSizeBytes);
+        try {
+            int rows = load(source, bufferSizeBytes, phase);
+            long start = System.nanoTime();
+            sortEntries(rows);
+            sortNanos += System.nanoTime() - start;
+            return write(rows, run, spillDirs, bufferSizeBytes);
+        } finally {
+            arena.release(runBuffer);
+            runBuffer = null;
+            data = null;
+        }
+    }
+
+    private int load(ExternalSorter.RunSource source, int bufferSizeBytes, SortMetrics.Phase phase)
+            throws IOException {
+        int rows = 0;
+        int used = 0;
+        try (RangeLineReader reader = source.open(bufferSizeBytes, limits)) {
+            int length;
+            while ((length = reader.readLineInto()) >= 0) {
+                checkColumns(reader.line, length);
+                if (used + length > runBuffer.data.capacity()) {
+                    arena.ensureData(runBuffer, (long) used + length, used);
+                }
+                if (runBuffer.entries == null || (rows + 1) * OffHeapArena.ENTRY_LONGS > runBuffer.entries.capacity()) {
+                    arena.ensureEntries(runBuffer, Math.max(1024, rows + 1), rows);
+                }
+                data = runBuffer.data;
+                data.put(used, reader.line, 0, length);
+
+                LongBuffer entries = runBuffer.entries;
+                entries.put(rows * OffHeapArena.ENTRY_LONGS, prefix(used, used + length));
+                entries.put(rows * OffHeapArena.ENTRY_LONGS + 1, (long) used << 32 | length);
+                used += length;
+                rows++;
+            }
+            phase.rows.add(rows);
+            phase.bytesRead.add(reader.bytesRead);
+            rowsKept += rows;
+            rowsRejected += reader.rowsRejected;
+        }
+        data = runBuffer.data;
+        return rows;
+    }
+
+    // the rows of a run are compared column by column, so they must all have as many columns
+    private void checkColumns(byte[] line, int length) {
+        int cols = 1 + scanner.count(line, 0, length, (byte) ',', commas);
+        if (numCols < 0) {
+            numCols = cols;
+            for (int column : columns) {
+                if (column >= cols) {
+                    throw new RuntimeException("Column " + column + " is not in a row of " + cols + " columns");
+                }
+            }
+        } else if (cols != numCols) {
+            throw new RuntimeException("Cannot compare columns of different sizes: " + cols + " columns instead of "
+                    + numCols + " in " + new String(line, 0, length, ExternalSorter.CHARSET));
+        }
+    }
+
+    private long prefix(int start, int end) {
+        long prefix = 0;
+        int bytes = 0;
+        for (int c = 0; c < columns.length && bytes < 8; c++) {
+            long bounds = columnBounds(start, end, columns[c]);
+            for (int i = (int) (bounds >>> 32); i < (int) bounds && bytes < 8; i++) {
+                prefix = prefix << 8 | KeySpec.utf16Order(data.get(i) & 0xff);
+                bytes++;
+            }
+            // 0x00 separator, sorts a shorter column first
+            if (bytes < 8) {
+                prefix <<= 8;
+                bytes++;
+            }
+        }
+        return bytes < 8 ? prefix << (8 * (8 - bytes)) : prefix;
+    }
+
+    // start << 32 | end of a column of the line [start, end)
+    private long columnBounds(int start, int end, int column) {
+        int from = start;
+        for (int c = 0; c < column; c++) {
+            while (from < end && data.get(from) != ',') {
+                from++;
+            }
+            from++;
+        }
+        from = Math.min(from, end);
+        int to = from;
+        while (to < end && data.get(to) != ',') {
+            to++;
+        }
+        return (long) from << 32 | to;
+    }
+
+    private int compare(long prefixOne, long pointerOne, long prefixTwo, long pointerTwo) {
+        comparisons.increment();
+        int comparison = Long.compareUnsigned(prefixOne, prefixTwo);
+        if (comparison != 0) {
+            return comparison;
+        }
+        comparison = compareKeys(pointerOne, pointerTwo);
+        return comparison != 0 ? comparison : Long.compare(pointerOne, pointerTwo);
+    }
+
+    private int compareKeys(long pointerOne, long pointerTwo) {
+        int startOne = (int) (pointerOne >>> 32);
+        int endOne = startOne + (int) pointerOne;
+        int startTwo = (int) (pointerTwo >>> 32);
+        int endTwo = startTwo + (int) pointerTwo;
+        for (int column : columns) {
+            long one = columnBounds(startOne, endOne, column);
+            long two = columnBounds(startTwo, endTwo, column);
+            int i = (int) (one >>> 32);
+            int j = (int) (two >>> 32);
+            int toOne = (int) one;
+            int toTwo = (int) two;
+            while (i < toOne && j < toTwo) {
+                int comparison = Integer.compare(KeySpec.utf16Order(data.get(i++) & 0xff),
+                        KeySpec.utf16Order(data.get(j++) & 0xff));
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            int comparison = Integer.compare(toOne - i, toTwo - j);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    private void sortEntries(int rows) {
+        if (radix) {
+            radixSort(0, rows, 0);
+        } else {
+            mergeSort(0, rows);
+        }
+    }
+
+    // MSD radix sort on the bytes of the key prefixes, small buckets and equal prefixes by comparison
+    private void radixSort(int lo, int hi, int depth) {
+        if (hi - lo < RadixSorter.SMALL_BUCKET || depth == Long.BYTES) {
+            mergeSort(lo, hi);
+            return;
+        }
+        LongBuffer entries = runBuffer.entries;
+        LongBuffer scratch = runBuffer.scratch;
+        int[] count = counts[depth];
+        Arrays.fill(count, 0);
+        int shift = 8 * (Long.BYTES - 1 - depth);
+        for (int i = lo; i < hi; i++) {
+            count[(int) (entries.get(i * OffHeapArena.ENTRY_LONGS) >>> shift & 0xff) + 1]++;
+        }
+        for (int b = 0; b < 256; b++) {
+            count[b + 1] += count[b];
+        }
+        for (int i = lo; i < hi; i++) {
+            int b = (int) (entries.get(i * OffHeapArena.ENTRY_LONGS) >>> shift & 0xff);
+            copy(entries, i, scratch, lo + count[b]++);
+        }
+        for (int i = lo; i < hi; i++) {
+            copy(scratch, i, entries, i);
+        }
+
+        // count[b] is now the end of bucket b
+        int start = lo;
+        for (int b = 0; b < 256; b++) {
+            int end = lo + count[b];
+            if (end - start > 1) {
+                radixSort(start, end, depth + 1);
+            }
+            start = end;
+        }
+    }
+
+    // insertion sort of small blocks, then bottom up merges between the entries and the scratch entries
+    private void mergeSort(int lo, int hi) {
+        LongBuffer from = runBuffer.entries;
+        LongBuffer to = runBuffer.scratch;
+        for (int start = lo; start < hi; start += INSERTION_SORT_ROWS) {
+            int end = Math.min(hi, start + INSERTION_SORT_ROWS);
+            for (int i = start + 1; i < end; i++) {
+                long prefix = from.get(i * OffHeapArena.ENTRY_LONGS);
+                long pointer = from.get(i * OffHeapArena.ENTRY_LONGS + 1);
+                int j = i - 1;
+                while (j >= start && compare(from.get(j * OffHeapArena.ENTRY_LONGS),
+                        from.get(j * OffHeapArena.ENTRY_LONGS + 1), prefix, pointer) > 0) {
+                    copy(from, j, from, j + 1);
+                    j--;
+                }
+                from.put((j + 1) * OffHeapArena.ENTRY_LONGS, prefix);
+                from.put((j + 1) * OffHeapArena.ENTRY_LONGS + 1, pointer);
+            }
+        }
+
+        for (int width = INSERTION_SORT_ROWS; width < hi - lo; width *= 2) {
+            for (int start = lo; start < hi; start += 2 * width) {
+                int middle = Math.min(hi, start + width);
+                int end = Math.min(hi, start + 2 * width);
+                int i = start;
+                int j = middle;
+                int k = start;
+                while (i < middle && j < end) {
+                    boolean first = compare(from.get(i * OffHeapArena.ENTRY_LONGS),
+                            from.get(i * OffHeapArena.ENTRY_LONGS + 1), from.get(j * OffHeapArena.ENTRY_LONGS),
+                            from.get(j * OffHeapArena.ENTRY_LONGS + 1)) <= 0;
+                    copy(from, first ? i++ : j++, to, k++);
+                }
+                while (i < middle) {
+                    copy(from, i++, to, k++);
+                }
+                while (j < end) {
+                    copy(from, j++, to, k++);
+                }
+            }
+            LongBuffer swap = from;
+            from = to;
+            to = swap;
+        }
+
+        if (from != runBuffer.entries) {
+            for (int i = lo; i < hi; i++) {
+                copy(from, i, runBuffer.entries, i);
+            }
+        }
+    }
+
+    private static void copy(LongBuffer from, int i, LongBuffer to, int j) {
+        to.put(j * OffHeapArena.ENTRY_LONGS, from.get(i * OffHeapArena.ENTRY_LONGS));
+        to.put(j * OffHeapArena.ENTRY_LONGS + 1, from.get(i * OffHeapArena.ENTRY_LONGS + 1));
+    }
+
+    private long write(int rows, File run, SpillDirs spillDirs, int bufferSizeBytes) throws IOException {
+        long bytesWritten = 0;
+        byte[] block = new byte[Math.max(bufferSizeBytes, 64 * 1024)];
+        int used = 0;
+        try (OutputStream out = spillDirs.output(run, bufferSizeBytes)) {
+            for (int i = 0; i < rows; i++) {
+                long pointer = runBuffer.entries.get(i * OffHeapArena.ENTRY_LONGS + 1);
+                int start = (int) (pointer >>> 32);
+                int length = (int) pointer;
+                if (used + length + 1 > block.length) {
+                    out.write(block, 0, used);
+                    used = 0;
+                }
+                if (length + 1 > block.length) {
+                    block = new byte[length + 1];
+                }
+                data.get(start, block, used, length);
+                block[used + length] = '\n';
+                used += length + 1;
+                bytesWritten += length + 1;
+            }
+            out.write(block, 0, used);
+        }
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    MSD radix sort of the rows of a run by their encoded keys (KeySpec.encode: the key columns as UTF-8 in UTF-16
+    order joined by 0x00), an alternative to sorting with ColumnsComparator (--sort-engine radix) in the order
+    the runs are then merged in by ColumnsComparator. Keys sharing a prefix are only looked at from where they
+    differ instead of from the start at every comparison; buckets smaller than SMALL_BUCKET rows are finished
+    by insertion sort from the current byte.
+
+    Stable like List.sort: rows are distributed in order and equal keys keep their order.
+ */
+public class RadixSorter {
+    static String COMPARISON = "comparison";
+    static String RADIX = "radix";
+    static int SMALL_BUCKET = 32;
+
+    byte[][] keys;
+    int[] order;
+    int[] aux;
+    // counts of the buckets at every depth, reused by all the buckets at that depth
+    List<int[]> counts = new ArrayList<>();
+    LongAdder comparisons;
+
+    public RadixSorter(LongAdder comparisons) {
+        this.comparisons = comparisons;
+    }
+
+    // rows sorted by the key columns in the order of ColumnsComparator: String.compareTo (UTF-16) per column,
+    // collation keys for collated ones. Only an uncollated key holding U+0000 can sort differently, its 0x00
+    // byte reading as the end of the column
+    public List<String[]> sort(List<String[]> rows, KeySpec keySpec) {
+        int numCols = rows.isEmpty() ? 0 : rows.get(0).length;
+        byte[][] keys = new byte[rows.size()][];
+        for (int i = 0; i < keys.length; i++) {
+            String[] row = rows.get(i);
+            if (row.length != numCols) {
+                throw new RuntimeException("Cannot compare columns of different sizes: " + row.length
+                        + " columns instead of " + numCols + " in " + String.join(ExternalSorter.CSV_SPLIT_BY, row));
+            }
+            keys[i] = keySpec.encode(row);
+        }
+        int[] sorted = sort(keys);
+        List<String[]> sortedRows = new ArrayList<>(rows.size());
+        for (int index : sorted) {
+            sortedRows.add(rows.get(index));
+        }
+        return sortedRows;
+    }
+
+    // indexes of keys in sorted order
+    public int[] sort(byte[][] keys) {
+        this.keys = keys;
+        this.order = new int[keys.length];
+        this.aux = new int[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        sort(0, keys.length, 0);
+        int[] sorted = order;
+        this.keys = null;
+        this.order = null;
+        this.aux = null;
+        return sorted;
+    }
+
+    private void sort(int lo, int hi, int depth) {
+        if (hi - lo < SMALL_BUCKET) {
+            insertionSort(lo, hi, depth);
+            return;
+        }
+        // bucket 0 is the keys that end before depth, 1 + b the keys with byte b at depth
+        while (counts.size() <= depth) {
+            counts.add(new int[258]);
+        }
+        int[] count = counts.get(depth);
+        Arrays.fill(count, 0);
+        for (int i = lo; i < hi; i++) {
+            count[bucket(keys[order[i]], depth) + 1]++;
+        }
+        for (int b = 0; b < 257; b++) {
+            count[b + 1] += count[b];
+        }
+        for (int i = lo; i < hi; i++) {
+            int index = order[i];
+            aux[lo + count[bucket(keys[index], depth)]++] = index;
+        }
+        System.arraycopy(aux, lo, order, lo, hi - lo);
+
+        // count[b] is now the end of bucket b; the keys that ended are equal and in order. The buckets
+        // below only use the counts of the next depths, so this one stays intact
+        int start = lo + count[0];
+        for (int b = 1; b < 257; b++) {
+            int end = lo + count[b];
+            if (end - start > 1) {
+                sort(start, end, depth + 1);
+            }
+            start = end;
+        }
+    }
+
+    private static int bucket(byte[] key, int depth) {
+        return depth < key.length ? (key[depth] & 0xff) + 1 : 0;
+    }
+
+    private void insertionSort(int lo, int hi, int depth) {
+        for (int i = lo + 1; i < hi; i++) {
+            int index = order[i];
+            int j = i - 1;
+            while (j >= lo && compare(keys[order[j]], keys[index], depth) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+    }
+
+    private int compare(byte[] one, byte[] two, int depth) {
+        comparisons.increment();
+        int length = Math.min(one.length, two.length);
+        for (int i = depth; i < length; i++) {
+            int comparison = Integer.compare(one[i] & 0xff, two[i] & 0xff);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare(one.length, two.length);
+    }
+}
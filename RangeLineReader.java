@@ -0,0 +1,179 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+    Reads the lines of a byte range [start, end) of a file. A line belongs to the range its first byte is in,
+    so ranges cut at arbitrary offsets split a file into disjoint sets of whole lines: a range not starting
+    at 0 skips the partial line it starts in and the last line may run past end.
+
+    Also reads all the lines of a stream (run files read through SpillDirs, stdin). Newlines are found by
+    the ByteScanner, and split() cuts a line into its columns without decoding it as a whole first.
+    With a filter the lines it rejects are skipped unsplit, and with select every line is cut down to those
+    columns, in that order, as it is read.
+ */
+public class RangeLineReader implements Closeable {
+    FileChannel channel;
+    InputStream in;
+    ByteBuffer buffer;
+    long position;
+    long end;
+    long bytesRead;
+    // where the last line read starts, in the file (in the stream for a stream)
+    long lineStart;
+    byte[] line = new byte[256];
+    Charset charset = ExternalSorter.CHARSET;
+    ByteScanner scanner = ByteScanner.get();
+    ByteScanner.Positions commas = new ByteScanner.Positions();
+    RowFilter filter;
+    long rowsRejected;
+    int[] select;
+    byte[] selected;
+
+    public RangeLineReader(File file, long start, long end, int bufferSizeBytes) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocate(bufferSizeBytes);
+        this.buffer.flip();
+        this.end = end;
+        if (start > 0) {
+            // the line that contains start - 1 belongs to the previous range
+            channel.position(start - 1);
+            position = start - 1;
+            readLineBytes();
+        }
+        bytesRead = 0;
+    }
+
+    public RangeLineReader(InputStream in, int bufferSizeBytes) {
+        this.in = in;
+        this.buffer = ByteBuffer.allocate(bufferSizeBytes);
+        this.buffer.flip();
+        this.end = Long.MAX_VALUE;
+    }
+
+    // null after the last line starting before end
+    public String readLine() throws IOException {
+        int length = readLineInto();
+        return length < 0 ? null : new String(line, 0, length, charset);
+    }
+
+    // like readLine without decoding: the bytes are line[0, length), -1 after the last line
+    int readLineInto() throws IOException {
+        while (position < end) {
+            lineStart = position;
+            int length = readLineBytes();
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            if (length >= 0 && filter != null && !filter.accept(line, length, scanner, commas)) {
+                rowsRejected++;
+                continue;
+            }
+            return select != null && length >= 0 ? select(length) : length;
+        }
+        return -1;
+    }
+
+    // the selected columns of line[0, length) become the line
+    private int select(int length) {
+        commas.count = 0;
+        scanner.positions(line, 0, length, (byte) ',', commas);
+        int numCols = commas.count + 1;
+        if (selected == null || selected.length < line.length) {
+            selected = new byte[line.length];
+        }
+        int selectedLength = 0;
+        for (int i = 0; i < select.length; i++) {
+            int column = select[i];
+            if (column >= numCols) {
+                throw new RuntimeException("Column " + column + " is not in a row of " + numCols + " columns");
+            }
+            int from = column == 0 ? 0 : commas.at[column - 1] + 1;
+            int to = column == numCols - 1 ? length : commas.at[column];
+            // a column can be selected twice
+            if (selectedLength + to - from + 1 > selected.length) {
+                selected = Arrays.copyOf(selected, Math.max(selected.length * 2, selectedLength + to - from + 1));
+            }
+            if (i > 0) {
+                selected[selectedLength++] = ',';
+            }
+            System.arraycopy(line, from, selected, selectedLength, to - from);
+            selectedLength += to - from;
+        }
+        byte[] swap = line;
+        line = selected;
+        selected = swap;
+        return selectedLength;
+    }
+
+    // the columns of the next line, null after the last one
+    public String[] readColumns() throws IOException {
+        int length = readLineInto();
+        return length < 0 ? null : split(length);
+    }
+
+    // the columns of line[0, length)
+    String[] split(int length) {
+        return scanner.split(line, 0, length, charset, commas);
+    }
+
+    // bytes of the next line without the newline into line, -1 at the end of the file
+    private int readLineBytes() throws IOException {
+        int length = 0;
+        boolean any = false;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read;
+                if (in != null) {
+                    read = in.read(buffer.array(), 0, buffer.capacity());
+                    buffer.position(Math.max(0, read));
+                } else {
+                    read = channel.read(buffer);
+                }
+                buffer.flip();
+                if (read <= 0) {
+                    return any ? length : -1;
+                }
+            }
+            any = true;
+            byte[] array = buffer.array();
+            int from = buffer.position();
+            int to = buffer.limit();
+            int newline = scanner.indexOf(array, from, to, (byte) '\n');
+            int i = newline >= 0 ? newline : to;
+            int chunk = i - from;
+            if (length + chunk > line.length) {
+                byte[] bigger = new byte[Math.max(line.length * 2, length + chunk)];
+                System.arraycopy(line, 0, bigger, 0, length);
+                line = bigger;
+            }
+            System.arraycopy(array, from, line, length, chunk);
+            length += chunk;
+            if (i < to) {
+                buffer.position(i + 1);
+                position += chunk + 1;
+                bytesRead += chunk + 1;
+                return length;
+            }
+            buffer.position(to);
+            position += chunk;
+            bytesRead += chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        } else {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Range partitioning of rows by the key columns, so partitions sorted independently concatenate into one
+    sorted output: the splitters are the keys at the quantiles of a sample, and partition i gets the rows with
+    splitters[i - 1] < key <= splitters[i]. Rows with equal keys always go to the same partition, in input
+    order, so the concatenation is as stable as the sort.
+
+    A skewed key can make splitters equal; those partitions stay empty.
+ */
+public class RangePartitioner {
+    static int SAMPLE_ROWS = 10000;
+
+    ColumnsComparator comparator;
+    List<String[]> splitters = new ArrayList<>();
+    int partitions;
+
+    public RangePartitioner(KeySpec keySpec, List<String[]> sample, int partitions) {
+        this.comparator = keySpec.comparator(new LongAdder());
+        this.partitions = partitions;
+        List<String[]> sorted = new ArrayList<>(sample);
+        sorted.sort(comparator);
+        for (int i = 1; i < partitions && !sorted.isEmpty(); i++) {
+            splitters.add(sorted.get(Math.min(sorted.size() - 1, i * sorted.size() / partitions)));
+        }
+        // without a sample everything goes to the last partition
+        while (splitters.size() < partitions - 1) {
+            splitters.add(null);
+        }
+    }
+
+    // the first partition whose splitter is not below the row
+    public int partition(String[] row) {
+        int lo = 0;
+        int hi = splitters.size();
+        while (lo < hi) {
+            int middle = (lo + hi) >>> 1;
+            String[] splitter = splitters.get(middle);
+            if (splitter != null && comparator.compare(row, splitter) > 0) {
+                lo = middle + 1;
+            } else {
+                hi = middle;
+            }
+        }
+        return lo;
+    }
+
+    // rows at evenly spaced offsets of the files, about SAMPLE_ROWS in all
+    static List<String[]> sample(List<File> files, boolean hasHeader, int bufferSizeBytes) throws IOException {
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        List<String[]> sample = new ArrayList<>();
+        for (File file : files) {
+            long size = file.length();
+            long rows = Math.max(1, SAMPLE_ROWS * size / Math.max(1, totalBytes));
+            for (long i = 0; i < rows; i++) {
+                long offset = size * i / rows;
+                try (RangeLineReader reader = new RangeLineReader(file, offset, size, bufferSizeBytes)) {
+                    if (offset == 0 && hasHeader) {
+                        reader.readLine();
+                    }
+                    String line = reader.readLine();
+                    if (line != null) {
+                        sample.add(line.split(ExternalSorter.CSV_SPLIT_BY, -1));
+                    }
+                }
+            }
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,204 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    Rows to keep, tested on the line bytes before a row is split into Strings. Every condition must hold:
+
+    4=electronics.smartphone       equal
+    1=cart,purchase                equal to one of them
+    4^=electronics.,appliances.    starts with one of them
+    0>=2019-11-15  6<100           ranges: numbers if the value is a number, else bytes like the sort order
+
+    Columns are numbered as in the input. A row without the column is dropped. Values compare as UTF-8 bytes,
+    the charset every row is read in (ExternalSorter.CHARSET).
+ */
+public class RowFilter {
+    static String EQUAL = "=";
+    static String PREFIX = "^=";
+    static Pattern CONDITION = Pattern.compile("(\\d+)(\\^=|<=|>=|<|>|=)(.*)");
+
+    List<Condition> conditions = new ArrayList<>();
+    // the largest column tested, the commas after it are not looked for
+    int lastColumn;
+
+    public static RowFilter parse(String[] expressions) {
+        RowFilter filter = new RowFilter();
+        for (String expression : expressions) {
+            Matcher matcher = CONDITION.matcher(expression);
+            if (!matcher.matches()) {
+                throw new RuntimeException("Cannot parse filter " + expression
+                        + ", expected <column><op><value> with op one of = ^= < <= > >=");
+            }
+            Condition condition = new Condition(Integer.parseInt(matcher.group(1)), matcher.group(2),
+                    matcher.group(3));
+            filter.conditions.add(condition);
+            filter.lastColumn = Math.max(filter.lastColumn, condition.column);
+        }
+        return filter;
+    }
+
+    // line[0, length), commas is scratch for the column boundaries
+    boolean accept(byte[] line, int length, ByteScanner scanner, ByteScanner.Positions commas) {
+        commas.count = 0;
+        int from = 0;
+        // the commas up to the end of the last column tested
+        while (commas.count <= lastColumn) {
+            int comma = scanner.indexOf(line, from, length, (byte) ',');
+            if (comma < 0) {
+                break;
+            }
+            commas.add(comma);
+            from = comma + 1;
+        }
+        for (Condition condition : conditions) {
+            int column = condition.column;
+            if (column > commas.count) {
+                return false;
+            }
+            int start = column == 0 ? 0 : commas.at[column - 1] + 1;
+            int end = column < commas.count ? commas.at[column] : length;
+            if (!condition.test(line, start, end)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Condition condition : conditions) {
+            sb.append(sb.length() == 0 ? "" : " and ").append(condition.column).append(condition.op)
+                    .append(condition.text);
+        }
+        return sb.toString();
+    }
+
+    static class Condition {
+        static double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13,
+                1e14, 1e15};
+        int column;
+        String op;
+        String text;
+        byte[][] values;
+        // ranges against a number compare numbers
+        boolean numeric;
+        double number;
+
+        Condition(int column, String op, String text) {
+            this.column = column;
+            this.op = op;
+            this.text = text;
+            boolean list = EQUAL.equals(op) || PREFIX.equals(op);
+            String[] texts = list ? text.split(ExternalSorter.CSV_SPLIT_BY, -1) : new String[]{text};
+            values = new byte[texts.length][];
+            for (int i = 0; i < texts.length; i++) {
+                values[i] = texts[i].getBytes(StandardCharsets.UTF_8);
+            }
+            if (!list) {
+                try {
+                    number = Double.parseDouble(text);
+                    numeric = true;
+                } catch (NumberFormatException e) {
+                    numeric = false;
+                }
+            }
+        }
+
+        boolean test(byte[] bytes, int from, int to) {
+            if (EQUAL.equals(op)) {
+                for (byte[] value : values) {
+                    if (value.length == to - from && startsWith(bytes, from, value)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (PREFIX.equals(op)) {
+                for (byte[] value : values) {
+                    if (value.length <= to - from && startsWith(bytes, from, value)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            int comparison;
+            if (numeric) {
+                try {
+                    comparison = Double.compare(parseNumber(bytes, from, to), number);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else {
+                comparison = compareBytes(bytes, from, to, values[0]);
+            }
+            switch (op) {
+                case "<":
+                    return comparison < 0;
+                case "<=":
+                    return comparison <= 0;
+                case ">":
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+
+        // plain decimals of up to 15 digits straight from the bytes: the digits as a long divided once by a
+        // power of ten are both exact, so the quotient is rounded like Double.parseDouble; anything else
+        // (exponents, more digits) goes through it
+        static double parseNumber(byte[] bytes, int from, int to) {
+            int i = from;
+            boolean negative = i < to && bytes[i] == '-';
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+                i++;
+            }
+            long digits = 0;
+            int numDigits = 0;
+            int decimals = -1;
+            for (; i < to; i++) {
+                byte b = bytes[i];
+                if (b >= '0' && b <= '9') {
+                    digits = digits * 10 + (b - '0');
+                    numDigits++;
+                    if (decimals >= 0) {
+                        decimals++;
+                    }
+                } else if (b == '.' && decimals < 0) {
+                    decimals = 0;
+                } else {
+                    break;
+                }
+            }
+            if (i < to || numDigits == 0 || numDigits > 15) {
+                return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.ISO_8859_1));
+            }
+            double value = decimals > 0 ? digits / POWERS_OF_TEN[decimals] : digits;
+            return negative ? -value : value;
+        }
+
+        private static boolean startsWith(byte[] bytes, int from, byte[] value) {
+            for (int i = 0; i < value.length; i++) {
+                if (bytes[from + i] != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // as unsigned bytes, the order of UTF-8 strings
+        private static int compareBytes(byte[] bytes, int from, int to, byte[] value) {
+            int length = Math.min(to - from, value.length);
+            for (int i = 0; i < length; i++) {
+                int comparison = (bytes[from + i] & 0xff) - (value[i] & 0xff);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return (to - from) - value.length;
+        }
+    }
+}
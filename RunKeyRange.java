@@ -0,0 +1,113 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+    The first and last row of a sorted run (its smallest and largest key) and its row count, recorded as the
+    run is written, so the merge can tell which runs overlap.
+
+    Runs ordered by their first row fall into stretches: a run starts a new stretch when it starts after the
+    last row of every run before it. Stretches never interleave, so they are merged one after the other, each
+    with only its own runs open, and a stretch of one run needs no merge at all. Presorted or time partitioned
+    inputs are mostly stretches of one run.
+
+    A key equal to the last one of the stretch before also starts a new stretch when all the runs before come
+    earlier in the input, so rows with equal keys keep their input order either way.
+ */
+public class RunKeyRange {
+    String[] first;
+    String[] last;
+    long rows;
+
+    public RunKeyRange(String[] first, String[] last, long rows) {
+        this.first = first;
+        this.last = last;
+        this.rows = rows;
+    }
+
+    // of a sorted list of rows
+    static RunKeyRange of(List<String[]> rows) {
+        return rows.isEmpty() ? new RunKeyRange(null, null, 0)
+                : new RunKeyRange(rows.get(0), rows.get(rows.size() - 1), rows.size());
+    }
+
+    // of the merge of runs, null if one of them has none
+    static RunKeyRange union(List<RunKeyRange> ranges, Comparator<String[]> comparator) {
+        if (ranges == null) {
+            return null;
+        }
+        RunKeyRange union = new RunKeyRange(null, null, 0);
+        for (RunKeyRange range : ranges) {
+            if (range == null) {
+                return null;
+            }
+            if (range.rows == 0) {
+                continue;
+            }
+            if (union.rows == 0 || comparator.compare(range.first, union.first) < 0) {
+                union.first = range.first;
+            }
+            if (union.rows == 0 || comparator.compare(range.last, union.last) > 0) {
+                union.last = range.last;
+            }
+            union.rows += range.rows;
+        }
+        return union;
+    }
+
+    // the indexes of the runs in every stretch, stretches in key order and runs in input order; a run without a
+    // range (null, e.g. sorted off-heap or resumed) may overlap any other, then all the runs are one stretch
+    static List<List<Integer>> stretches(List<RunKeyRange> ranges, Comparator<String[]> comparator) {
+        List<List<Integer>> stretches = new ArrayList<>();
+        List<Integer> byFirst = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+            if (ranges.get(i) == null) {
+                stretches.clear();
+                byFirst.clear();
+                for (int j = 0; j < ranges.size(); j++) {
+                    byFirst.add(j);
+                }
+                stretches.add(byFirst);
+                return stretches;
+            }
+            if (ranges.get(i).rows == 0) {
+                // empty, in a stretch of its own
+                stretches.add(new ArrayList<>(List.of(i)));
+            } else {
+                byFirst.add(i);
+            }
+        }
+        // stable, equal first rows stay in input order
+        byFirst.sort((one, two) -> comparator.compare(ranges.get(one).first, ranges.get(two).first));
+
+        List<Integer> stretch = null;
+        String[] stretchLast = null;
+        int stretchMaxIndex = -1;
+        for (int i : byFirst) {
+            RunKeyRange range = ranges.get(i);
+            int comparison = stretch == null ? 1 : comparator.compare(range.first, stretchLast);
+            if (comparison > 0 || (comparison == 0 && stretchMaxIndex < i)) {
+                stretch = new ArrayList<>();
+                stretches.add(stretch);
+                stretchLast = range.last;
+                stretchMaxIndex = -1;
+            } else if (comparator.compare(range.last, stretchLast) > 0) {
+                stretchLast = range.last;
+            }
+            stretch.add(i);
+            stretchMaxIndex = Math.max(stretchMaxIndex, i);
+        }
+        for (List<Integer> runs : stretches) {
+            runs.sort(null);
+        }
+        return stretches;
+    }
+
+    static int largest(List<List<Integer>> stretches) {
+        int largest = 0;
+        for (List<Integer> stretch : stretches) {
+            largest = Math.max(largest, stretch.size());
+        }
+        return largest;
+    }
+}
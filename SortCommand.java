@@ -0,0 +1,360 @@
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Command line options shared by sortlargefile and sortlargefile-parallel, and the sort they both run over
+// ExternalSorter: writes <file><result dir suffix>sorted-<file>, or reads stdin and writes stdout
+public class SortCommand {
+    static String STDOUT = "-";
+
+    InputSource input;
+    ExternalSorter sorter;
+    // one per key spec
+    List<File> sortedFiles = new ArrayList<>();
+    boolean toStdout;
+
+    // the main of a command: resultSuffix names its work dir, defaultFileSorters its sorter threads unless -t
+    // gives them (null for the planner)
+    static void run(String[] args, String commandName, String resultSuffix, Integer defaultFileSorters) {
+        /*
+            Program to sort a large (GB size) csv file by some given string columns.
+            The approach used is:
+            a) Split the file into smaller files. One can choose how many files to split.
+            b) Sort each smaller file by the given columns.
+            c) Merge all the sorted files into one. It uses the concept of merging K sorted lists,
+               picking from the first elements.
+
+            // Tested with:
+            https://www.kaggle.com/mkechinov/ecommerce-behavior-data-from-multi-category-store?select=2019-Nov.csv
+            file size 9,006,762,395 bytes ~ 9 GB
+
+            // rows look like
+            event_time,event_type,product_id,category_id,category_code,brand,price,user_id,user_session
+            2019-11-01 00:00:00 UTC,view,1003461,2053013555631882655,electronics.smartphone,xiaomi,489.07,520088904,
+            4d3b30da-a5e4-49df-b1a8-ba5943f1dd33
+            2019-11-01 00:00:00 UTC,view,5000088,2053013566100866035,appliances.sewing_machine,janome,293.65,530496790,
+            8e5f4f83-366c-4f70-860e-ca7417414283
+
+            // the full file downloaded above
+            String nonSortedFileName = "file.csv";
+
+            // sorted by columns 1, 4, 5 which would be:
+            event_type, category_code, brand
+            int[] columns = {1, 4, 5};
+
+            // if split in 20 files
+            int splitIntoNumFiles = 20;
+            a) Time to split file: 38.0 sec
+            b) Time to sort files: 286.0 sec
+            c) Time to merge: 109.0 sec
+            Total time: 433.0 sec
+
+            // if split in 50 files
+            int splitIntoNumFiles = 50;
+            a) Time to split file: 45.0 sec
+            b) Time to sort files: 269.0 sec
+            c) Time to merge: 168.0 sec
+            Total time: 482.0 sec
+         */
+
+        Options options = options();
+        CommandLine cmd = parse(options, args, commandName);
+        if (cmd == null) {
+            return;
+        }
+
+        SortCommand command = new SortCommand(cmd.getOptionValues("f"), keySpecs(cmd), limits(cmd),
+                cmd.getOptionValues("o"), resultSuffix, defaultFileSorters);
+        command.sorter.gzipOutput = cmd.hasOption("gzip");
+        command.sorter.columnarOutput = cmd.hasOption("columnar");
+        command.sort();
+    }
+
+    public SortCommand(String nonSortedFileName, KeySpec keySpec, SortLimits limits, String resultSuffix) {
+        this(new String[]{nonSortedFileName}, Collections.singletonList(keySpec), limits, null, resultSuffix, null);
+    }
+
+    // several files (or globs) are sorted together, by every key spec from one read of the input, into one
+    // output each (default sorted-by-<keys>-<file>, named after the first file)
+    public SortCommand(String[] nonSortedFileNames, List<KeySpec> keySpecs, SortLimits limits, String[] outputFileNames,
+                       String resultSuffix, Integer defaultFileSorters) {
+        if (limits.numFileSorters == null) {
+            limits.numFileSorters = defaultFileSorters;
+        }
+        this.input = InputSource.of(nonSortedFileNames);
+        if (limits.workDir == null && input.file != null) {
+            limits.workDir = new File(outputDirName(input.file.getPath(), resultSuffix));
+        }
+        this.sorter = new ExternalSorter(keySpecs, limits);
+        if (outputFileNames != null && outputFileNames.length != keySpecs.size()) {
+            throw new RuntimeException("One output (-o) per key spec (-c) is needed");
+        }
+        this.toStdout = outputFileNames != null && STDOUT.equals(outputFileNames[0]);
+        if (toStdout) {
+            if (keySpecs.size() > 1) {
+                throw new RuntimeException("Several key specs cannot all be written to stdout");
+            }
+            // stdout carries the sorted rows only
+            sorter.log = System.err;
+        } else if (outputFileNames != null) {
+            for (String outputFileName : outputFileNames) {
+                sortedFiles.add(new File(outputFileName));
+            }
+        } else {
+            File workDir = limits.workDir != null ? limits.workDir : ExternalSorter.defaultWorkDir(input);
+            for (KeySpec keySpec : keySpecs) {
+                String prefix = keySpecs.size() > 1 ? "sorted-by-" + keySpec.toString().replace(',', '-') + "-"
+                        : "sorted-";
+                sortedFiles.add(new File(workDir, prefix + input.name));
+            }
+        }
+
+        PrintStream log = sorter.log;
+        log.println("File name: " + input.name);
+        if (input.files.size() > 1) {
+            log.println(String.format("Files: %d", input.files.size()));
+        }
+        if (input.sizeBytes >= 0) {
+            DecimalFormat formatter = new DecimalFormat("#,###");
+            log.println("File size: " + formatter.format(input.sizeBytes) + " bytes");
+        }
+    }
+
+    static String outputDirName(String nonSortedFileName, String resultSuffix) {
+        return InputSource.stripGzipExtension(nonSortedFileName).replaceAll(ExternalSorter.CSV_EXTENSION, resultSuffix);
+    }
+
+    public void sort() {
+        if (toStdout) {
+            File reportDir = sorter.limits.workDir != null ? sorter.limits.workDir : ExternalSorter.defaultWorkDir(input);
+            sorter.sort(input, System.out, reportDir);
+        } else {
+            sorter.sort(input, sortedFiles);
+        }
+    }
+
+    static Options options() {
+        Options options = new Options();
+        options.addOption(Option.builder("f")
+                .longOpt("file-name")
+                .desc("Files to sort (names or globs, each with a header line, gzip or not), - for stdin")
+                .hasArgs()
+                .argName("FILE-NAME")
+                .required(true)
+                .build());
+        options.addOption(Option.builder("o")
+                .longOpt("output")
+                .desc("Sorted file, block gzip if named .gz, - for stdout (default <work-dir>/sorted-<file>), "
+                        + "one per -c")
+                .hasArg()
+                .argName("OUTPUT")
+                .build());
+        options.addOption(Option.builder("n")
+                .longOpt("number-files-to-split")
+                .desc("Number of files to split (default chosen by the planner)")
+                .hasArg()
+                .argName("NUMBER-FILES-TO-SPLIT")
+                .build());
+        options.addOption(Option.builder("c")
+                .longOpt("columns-to-sort")
+                .desc("Columns to sort by, e.g. 1 4:collate=de 5, repeat for several sorted outputs from one read of the input")
+                .hasArgs()
+                .argName("COLUMNS-TO-SORT-BY")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("select")
+                .desc("Columns to keep, in this order, including the columns to sort by (default all)")
+                .hasArgs()
+                .argName("COLUMNS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("where")
+                .desc("Rows to keep, all conditions must hold: 1=purchase, 1=cart,purchase (any of), "
+                        + "4^=electronics. (prefix), 6<100, 0>=2019-11-15 (ranges)")
+                .hasArgs()
+                .argName("CONDITIONS")
+                .build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .desc("Number of files sorted concurrently (default chosen by the planner)")
+                .hasArg()
+                .argName("THREADS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("fan-in")
+                .desc("Maximum number of files merged at once (default chosen by the planner)")
+                .hasArg()
+                .argName("FAN-IN")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("buffer-size")
+                .desc("Read and write buffer size in bytes (default chosen by the planner)")
+                .hasArg()
+                .argName("BUFFER-SIZE")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("work-dir")
+                .desc("Directory for the intermediate files and the result (default <file>-result/, a temp dir for stdin)")
+                .hasArg()
+                .argName("WORK-DIR")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("tmp-dir")
+                .desc("Directory for the intermediate files, repeat to spread them over several disks (default the work dir)")
+                .hasArg()
+                .argName("TMP-DIR")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("tmp-placement")
+                .desc("How intermediate files are spread over the tmp dirs: round-robin (default) or free-space")
+                .hasArg()
+                .argName("PLACEMENT")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("direct-io")
+                .desc("Write and read the intermediate files with direct I/O, bypassing the page cache")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("sort-engine")
+                .desc("How runs are sorted in memory: comparison (default) or radix")
+                .hasArg()
+                .argName("SORT-ENGINE")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("dictionary")
+                .desc("Sort and merge on order preserving codes of low cardinality key columns, sampled from the input")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("off-heap")
+                .desc("Sort the runs in off-heap memory instead of as Strings on the heap")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("off-heap-size")
+                .desc("Off-heap memory for --off-heap in bytes (default from -XX:MaxDirectMemorySize)")
+                .hasArg()
+                .argName("OFF-HEAP-SIZE")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("checkpoint")
+                .desc("Record the sorted runs and merges in the work dir and keep them on failure, so running the same sort again resumes")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("external")
+                .desc("Sort through run files even if the input fits in memory")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("tag-sort")
+                .desc("Sort only the keys and places of the rows, then copy the rows from the memory-mapped input "
+                        + "in that order (one plain file, for wide rows)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("verify")
+                .desc("Check that every output file is sorted once written, on all cores (see sortlargefile-verify)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("gzip")
+                .desc("Write the sorted rows as block gzip, e.g. to stdout")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("columnar")
+                .desc("Write the output as column blocks, dictionary and run-length encoded, with the keys of every "
+                        + "block (also for outputs named .cols, read with sortlargefile-columnar)")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("no-probe")
+                .desc("Do not probe the disk throughput when planning")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("no-history")
+                .desc("Do not use or record the throughput of previous runs")
+                .build());
+        return options;
+    }
+
+    // null if the arguments are wrong, after printing the usage
+    static CommandLine parse(Options options, String[] args, String commandName) {
+        CommandLineParser parser = new DefaultParser();
+        try {
+            return parser.parse(options, args);
+        } catch (ParseException e) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.setOptionComparator(null);
+            formatter.printHelp(commandName, options);
+            return null;
+        }
+    }
+
+    // every -c is a key spec of its own: -c 1 4 5 -c 7 0 sorts by both
+    static List<KeySpec> keySpecs(CommandLine cmd) {
+        List<KeySpec> keySpecs = new ArrayList<>();
+        for (Option option : cmd.getOptions()) {
+            if ("c".equals(option.getOpt())) {
+                keySpecs.add(KeySpec.parse(option.getValues()));
+            }
+        }
+        return keySpecs;
+    }
+
+    static SortLimits limits(CommandLine cmd) {
+        SortLimits limits = new SortLimits();
+        if (cmd.hasOption("n")) {
+            limits.splitIntoNumFiles = Integer.valueOf(cmd.getOptionValue("n"));
+        }
+        if (cmd.hasOption("t")) {
+            limits.numFileSorters = Integer.valueOf(cmd.getOptionValue("t"));
+        }
+        if (cmd.hasOption("fan-in")) {
+            limits.mergeFanIn = Integer.valueOf(cmd.getOptionValue("fan-in"));
+        }
+        if (cmd.hasOption("buffer-size")) {
+            limits.bufferSizeBytes = Integer.valueOf(cmd.getOptionValue("buffer-size"));
+        }
+        if (cmd.hasOption("work-dir")) {
+            limits.workDir = new File(cmd.getOptionValue("work-dir"));
+        }
+        if (cmd.hasOption("tmp-dir")) {
+            for (String tmpDir : cmd.getOptionValues("tmp-dir")) {
+                limits.tmpDirs.add(new File(tmpDir));
+            }
+        }
+        if (cmd.hasOption("tmp-placement")) {
+            String placement = cmd.getOptionValue("tmp-placement");
+            if (!SpillDirs.ROUND_ROBIN.equals(placement) && !SpillDirs.FREE_SPACE.equals(placement)) {
+                throw new RuntimeException("Unknown tmp placement " + placement);
+            }
+            limits.placeByFreeSpace = SpillDirs.FREE_SPACE.equals(placement);
+        }
+        if (cmd.hasOption("sort-engine")) {
+            String engine = cmd.getOptionValue("sort-engine");
+            if (!RadixSorter.COMPARISON.equals(engine) && !RadixSorter.RADIX.equals(engine)) {
+                throw new RuntimeException("Unknown sort engine " + engine);
+            }
+            limits.radixSort = RadixSorter.RADIX.equals(engine);
+        }
+        if (cmd.hasOption("select")) {
+            limits.select = KeySpec.parse(cmd.getOptionValues("select")).columns;
+        }
+        if (cmd.hasOption("where")) {
+            limits.where = RowFilter.parse(cmd.getOptionValues("where"));
+        }
+        limits.directIo = cmd.hasOption("direct-io");
+        limits.dictionary = cmd.hasOption("dictionary");
+        limits.checkpoint = cmd.hasOption("checkpoint");
+        limits.external = cmd.hasOption("external");
+        limits.verify = cmd.hasOption("verify");
+        limits.tagSort = cmd.hasOption("tag-sort");
+        limits.offHeap = cmd.hasOption("off-heap") || cmd.hasOption("off-heap-size");
+        if (cmd.hasOption("off-heap-size")) {
+            limits.offHeapBytes = Long.valueOf(cmd.getOptionValue("off-heap-size"));
+        }
+        limits.probeDisk = !cmd.hasOption("no-probe");
+        limits.useHistory = !cmd.hasOption("no-history");
+        return limits;
+    }
+}
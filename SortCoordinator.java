@@ -0,0 +1,443 @@
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+    Sorts an input on several worker JVMs (SortWorker), each with its own heap and GC, instead of one:
+
+    a) Sample the input and pick range splitters on the key columns (RangePartitioner), one partition per
+       worker. Plain files are sampled at evenly spaced offsets, gzip files by the first rows of the first
+       one, stdin by its first rows, which are held back until the splitters are known.
+    b) Stream every row to the worker of its partition over TCP. The workers sort and merge their partitions
+       independently while the input is still being read.
+    c) Read every worker's sorted partition at once, one thread each, so the final merges overlap, then
+       concatenate them in order into the output, or with --parts let every worker write
+       its partition to a file on its own host and write a manifest of the parts (worker, path, rows) as the
+       output.
+
+    --workers N starts N workers on localhost and stops them at the end; --worker host:port uses workers
+    started by hand, e.g. on other hosts (they need the input streamed only, not the files).
+
+    $ sortlargefile-distributed -f file.csv -c 1 4 5 --workers 4 --worker-memory 2g
+ */
+public class SortCoordinator {
+    static String LOCALHOST = "localhost";
+    static int BUFFER_BYTES = 1024 * 1024;
+
+    InputSource input;
+    KeySpec keySpec;
+    List<InetSocketAddress> workers = new ArrayList<>();
+    List<Process> processes = new ArrayList<>();
+    PrintStream log = System.out;
+
+    public SortCoordinator(InputSource input, KeySpec keySpec) {
+        this.input = input;
+        this.keySpec = keySpec;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("f")
+                .longOpt("file-name")
+                .desc("Files to sort (names or globs, each with a header line, gzip or not), - for stdin")
+                .hasArgs()
+                .argName("FILE-NAME")
+                .required(true)
+                .build());
+        options.addOption(Option.builder("o")
+                .longOpt("output")
+                .desc("Sorted file, or the manifest of the parts with --parts (default <file>-result-distributed/sorted-<file>)")
+                .hasArg()
+                .argName("OUTPUT")
+                .build());
+        options.addOption(Option.builder("c")
+                .longOpt("columns-to-sort")
+                .desc("Columns to sort by")
+                .hasArgs()
+                .argName("COLUMNS-TO-SORT-BY")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("workers")
+                .desc("Number of worker JVMs to start on localhost")
+                .hasArg()
+                .argName("WORKERS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("worker")
+                .desc("host:port of a running SortWorker, repeat for every worker")
+                .hasArg()
+                .argName("HOST:PORT")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("worker-memory")
+                .desc("Heap of the started workers, e.g. 2g (default the JVM default)")
+                .hasArg()
+                .argName("MEMORY")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("worker-threads")
+                .desc("Sorter threads of every started worker (default chosen by its planner)")
+                .hasArg()
+                .argName("THREADS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("work-dir")
+                .desc("Directory for the result and the work dirs of the started workers (default <file>-result-distributed/)")
+                .hasArg()
+                .argName("WORK-DIR")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("parts")
+                .desc("Directory on the worker hosts for the sorted partitions, not concatenated")
+                .hasArg()
+                .argName("PARTS-DIR")
+                .build());
+        CommandLine cmd = SortCommand.parse(options, args, "sortlargefile-distributed");
+        if (cmd == null) {
+            return;
+        }
+
+        InputSource input = InputSource.of(cmd.getOptionValues("f"));
+        SortCoordinator coordinator = new SortCoordinator(input, KeySpec.parse(cmd.getOptionValues("c")));
+        File workDir = cmd.hasOption("work-dir") ? new File(cmd.getOptionValue("work-dir"))
+                : input.file != null ? new File(outputDirName(input.file.getPath()))
+                : new File(System.getProperty("java.io.tmpdir"), "sortlargefile-" + ProcessHandle.current().pid());
+        File output = cmd.hasOption("o") ? new File(cmd.getOptionValue("o")) : new File(workDir, "sorted-" + input.name);
+        try {
+            if (cmd.hasOption("workers")) {
+                coordinator.startWorkers(Integer.parseInt(cmd.getOptionValue("workers")),
+                        cmd.getOptionValue("worker-memory"), cmd.getOptionValue("worker-threads"), workDir);
+            }
+            if (cmd.hasOption("worker")) {
+                for (String worker : cmd.getOptionValues("worker")) {
+                    coordinator.workers.add(address(worker));
+                }
+            }
+            if (coordinator.workers.isEmpty()) {
+                throw new RuntimeException("No workers, use --workers or --worker");
+            }
+            coordinator.sort(output, cmd.hasOption("parts") ? new File(cmd.getOptionValue("parts")) : null);
+        } finally {
+            coordinator.stopWorkers();
+        }
+    }
+
+    static String outputDirName(String nonSortedFileName) {
+        return InputSource.stripGzipExtension(nonSortedFileName).replaceAll(ExternalSorter.CSV_EXTENSION,
+                "-result-distributed/");
+    }
+
+    static InetSocketAddress address(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 0) {
+            throw new RuntimeException("Worker address is not host:port: " + hostPort);
+        }
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    // workers on localhost, each with a work dir under workDir and its output prefixed in the log
+    void startWorkers(int count, String memory, String threads, File workDir) {
+        for (int i = 0; i < count; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            if (memory != null) {
+                command.add("-Xmx" + memory);
+            }
+            // the rows go over the sockets as UTF-8 either way, the rest (file names, messages) as here
+            command.add("-Dfile.encoding=" + System.getProperty("file.encoding"));
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(SortWorker.class.getName());
+            command.add("--port");
+            command.add("0");
+            command.add("--bind");
+            command.add(LOCALHOST);
+            command.add("--work-dir");
+            command.add(new File(workDir, "worker-" + i).getPath());
+            if (threads != null) {
+                command.add("-t");
+                command.add(threads);
+            }
+            try {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                processes.add(process);
+                BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                        ExternalSorter.CHARSET));
+                String line = br.readLine();
+                if (line == null || !line.startsWith(SortWorker.LISTENING)) {
+                    throw new RuntimeException("Worker " + i + " did not start: " + line);
+                }
+                workers.add(new InetSocketAddress(LOCALHOST,
+                        Integer.parseInt(line.substring(SortWorker.LISTENING.length()))));
+                String prefix = "[worker " + i + "] ";
+                Thread drain = new Thread(() -> {
+                    try {
+                        String workerLine;
+                        while ((workerLine = br.readLine()) != null) {
+                            log.println(prefix + workerLine);
+                        }
+                    } catch (IOException e) {
+                        // the worker was stopped
+                    }
+                }, "worker-log-" + i);
+                drain.setDaemon(true);
+                drain.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Cannot start worker " + i);
+            }
+        }
+        log.println("Started " + count + " workers on " + workers);
+    }
+
+    void stopWorkers() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+    }
+
+    // partsDir null: the sorted rows are concatenated into output
+    public void sort(File output, File partsDir) {
+        long start = System.currentTimeMillis();
+        int numPartitions = workers.size();
+        List<Socket> sockets = new ArrayList<>();
+        long[] rowsSent = new long[numPartitions];
+        BufferedReader stream = null;
+        try {
+            stream = input.isSeekable() ? null : input.open(BUFFER_BYTES, 1);
+            List<String> heldBack = new ArrayList<>();
+            RangePartitioner partitioner = new RangePartitioner(keySpec, sample(stream, heldBack), numPartitions);
+
+            List<Writer> writers = new ArrayList<>();
+            List<String> partOutputs = new ArrayList<>();
+            for (int i = 0; i < numPartitions; i++) {
+                Socket socket = new Socket(workers.get(i).getHostString(), workers.get(i).getPort());
+                sockets.add(socket);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                        ExternalSorter.CHARSET), BUFFER_BYTES);
+                String partOutput = partsDir == null ? SortWorker.TO_SOCKET
+                        : new File(partsDir, "part-" + i + ExternalSorter.CSV_EXTENSION).getPath();
+                partOutputs.add(partOutput);
+                writer.write(String.join(SortWorker.SEPARATOR, SortWorker.SORT, String.valueOf(i), keySpec.toString(),
+                        partOutput) + "\n");
+                writers.add(writer);
+            }
+
+            long partitionStart = System.currentTimeMillis();
+            for (String line : heldBack) {
+                send(line, partitioner, writers, rowsSent);
+            }
+            if (stream != null) {
+                sendAll(stream, false, partitioner, writers, rowsSent);
+            } else {
+                for (File file : input.files) {
+                    try (BufferedReader br = reader(file)) {
+                        sendAll(br, input.hasHeader, partitioner, writers, rowsSent);
+                    }
+                }
+            }
+            for (int i = 0; i < numPartitions; i++) {
+                writers.get(i).flush();
+                sockets.get(i).shutdownOutput();
+            }
+            long rows = 0;
+            for (long sent : rowsSent) {
+                rows += sent;
+            }
+            log.println(String.format("a) partition: %d ms, %d rows to %d workers", System.currentTimeMillis() - partitionStart,
+                    rows, numPartitions));
+
+            long collectStart = System.currentTimeMillis();
+            output.getAbsoluteFile().getParentFile().mkdirs();
+            // every worker streams its final merge as soon as its input ends, so all the sockets are read at
+            // once, one thread each: read one after the other, a worker blocks on its full socket until the
+            // partitions before it are read, and the final merges run one after the other. The first partition
+            // goes straight to the output, the others to spool files next to it, appended once all are in
+            List<File> spools = new ArrayList<>();
+            List<ByteArrayOutputStream> manifestLines = new ArrayList<>();
+            List<Future<Received>> futures = new ArrayList<>();
+            ExecutorService executorService = Executors.newFixedThreadPool(numPartitions);
+            try {
+                for (int i = 0; i < numPartitions; i++) {
+                    int partition = i;
+                    File spool = partsDir != null ? null : i == 0 ? output
+                            : new File(output.getAbsoluteFile().getParentFile(), output.getName() + ".part-" + i);
+                    ByteArrayOutputStream manifestLine = new ByteArrayOutputStream();
+                    spools.add(spool);
+                    manifestLines.add(manifestLine);
+                    futures.add(executorService.submit(() -> {
+                        Received received = new Received();
+                        InputStream in = sockets.get(partition).getInputStream();
+                        if (spool == null) {
+                            received.rows = readDone(in, partition, partOutputs.get(partition), manifestLine);
+                        } else {
+                            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spool), BUFFER_BYTES)) {
+                                received.rows = copy(in, out);
+                            }
+                        }
+                        received.millis = System.currentTimeMillis() - collectStart;
+                        return received;
+                    }));
+                }
+                List<Received> parts = new ArrayList<>();
+                for (Future<Received> future : futures) {
+                    parts.add(future.get());
+                }
+                long receiveMillis = System.currentTimeMillis() - collectStart;
+
+                long partMillis = 0;
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output, partsDir == null),
+                        BUFFER_BYTES)) {
+                    for (int i = 0; i < numPartitions; i++) {
+                        if (parts.get(i).rows != rowsSent[i]) {
+                            throw new RuntimeException("Worker " + workers.get(i) + " sorted " + parts.get(i).rows
+                                    + " of " + rowsSent[i] + " rows of partition " + i);
+                        }
+                        if (partsDir != null) {
+                            manifestLines.get(i).writeTo(out);
+                        } else if (i > 0) {
+                            try (InputStream in = new FileInputStream(spools.get(i))) {
+                                in.transferTo(out);
+                            }
+                        }
+                        partMillis += parts.get(i).millis;
+                        log.println("   partition " + i + ": " + rowsSent[i] + " rows, received after "
+                                + parts.get(i).millis + " ms");
+                    }
+                }
+                log.println(String.format("b) sort and %s: %d ms, partitions received at once in %d ms (%d ms one "
+                                + "after the other, %d ms overlapped)", partsDir == null ? "concatenate" : "write parts",
+                        System.currentTimeMillis() - collectStart, receiveMillis, partMillis,
+                        Math.max(0, partMillis - receiveMillis)));
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error receiving from workers " + workers, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted receiving from workers " + workers);
+            } finally {
+                executorService.shutdownNow();
+                for (int i = 1; i < spools.size(); i++) {
+                    if (spools.get(i) != null) {
+                        spools.get(i).delete();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error sorting on workers " + workers);
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        log.println("Total time: " + (System.currentTimeMillis() - start) + " ms");
+        log.println((partsDir == null ? "Sorted file: " : "Parts manifest: ") + output.getPath());
+    }
+
+    // a stream is read once: its first rows are the sample, held back to be sent once the splitters are known
+    private List<String[]> sample(BufferedReader stream, List<String> heldBack) throws IOException {
+        if (stream != null) {
+            return firstRows(stream, input.hasHeader, heldBack);
+        }
+        if (input.gzipFiles.isEmpty()) {
+            return RangePartitioner.sample(input.files, input.hasHeader, 64 * 1024);
+        }
+        // gzip cannot be read at offsets, its first rows are read twice
+        try (BufferedReader br = reader(input.files.get(0))) {
+            return firstRows(br, input.hasHeader, new ArrayList<>());
+        }
+    }
+
+    private BufferedReader reader(File file) throws IOException {
+        return input.isGzip(file) ? input.open(file, BUFFER_BYTES, 1)
+                : new BufferedReader(new FileReader(file, ExternalSorter.CHARSET), BUFFER_BYTES);
+    }
+
+    private static List<String[]> firstRows(BufferedReader br, boolean hasHeader, List<String> heldBack)
+            throws IOException {
+        List<String[]> sample = new ArrayList<>();
+        String line;
+        if (hasHeader) {
+            br.readLine();
+        }
+        while (sample.size() < RangePartitioner.SAMPLE_ROWS && (line = br.readLine()) != null) {
+            heldBack.add(line);
+            sample.add(line.split(ExternalSorter.CSV_SPLIT_BY, -1));
+        }
+        return sample;
+    }
+
+    private void sendAll(BufferedReader br, boolean skipHeader, RangePartitioner partitioner, List<Writer> writers,
+                         long[] rowsSent) throws IOException {
+        String line;
+        if (skipHeader) {
+            br.readLine();
+        }
+        while ((line = br.readLine()) != null) {
+            send(line, partitioner, writers, rowsSent);
+        }
+    }
+
+    private static void send(String line, RangePartitioner partitioner, List<Writer> writers, long[] rowsSent)
+            throws IOException {
+        int partition = partitioner.partition(line.split(ExternalSorter.CSV_SPLIT_BY, -1));
+        Writer writer = writers.get(partition);
+        writer.write(line);
+        writer.write('\n');
+        rowsSent[partition]++;
+    }
+
+    // the sorted rows of a partition into out, returns the rows
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        long rows = 0;
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    rows++;
+                }
+            }
+            out.write(buffer, 0, read);
+        }
+        return rows;
+    }
+
+    // a parts manifest line: worker, path on the worker host, rows
+    private long readDone(InputStream in, int partition, String path, OutputStream out) throws IOException {
+        String[] done = SortWorker.readLine(in).split(SortWorker.SEPARATOR, -1);
+        if (done.length != 2 || !SortWorker.DONE.equals(done[0])) {
+            throw new RuntimeException("Worker " + workers.get(partition) + " failed partition " + partition);
+        }
+        out.write(String.join(SortWorker.SEPARATOR, workers.get(partition).getHostString() + ":"
+                + workers.get(partition).getPort(), path, done[1] + "\n").getBytes(ExternalSorter.CHARSET));
+        return Long.parseLong(done[1]);
+    }
+
+    // of a partition: its rows, and when it was all read, from the start of the collection
+    private static class Received {
+        long rows;
+        long millis;
+    }
+}
@@ -0,0 +1,484 @@
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+public class SortLargeFileBenchmark {
+    static String RESULT_PREFIX = "RESULT ";
+    static String[] RESULT_FIELDS = {"splits", "threads", "memory", "spill_io", "sort_engine", "scanner", "split_ms",
+            "sort_ms", "merge_ms", "total_ms", "bytes_read", "bytes_written", "peak_heap_bytes", "spill_bytes",
+            "spill_mb_per_sec", "in_memory_sort_ms", "comparisons", "scan_mb_per_sec"};
+    static String[] TEXT_FIELDS = {"memory", "spill_io", "sort_engine", "scanner"};
+    static String VECTOR_MODULE = "jdk.incubator.vector";
+    static String BUFFERED = "buffered";
+    static String DIRECT = "direct";
+
+    public static void main(String[] args) {
+        /*
+            Repeatable benchmark for SortLargeFileParallel.
+
+            a) Generates a reproducible csv dataset from a seed (row count, column count, key cardinality,
+               zipf skew of the key values and fraction of presorted rows).
+            b) Runs the full sort() for every combination of split count, thread count, memory budget,
+               spill I/O (page cache or direct I/O) and sort engine (List.sort with ColumnsComparator or
+               radix) and byte scanner (scalar or vector). in_memory_sort_ms is the time spent sorting the same
+               runs in memory only, scan_mb_per_sec how fast the scanner splits the whole input into lines and
+               columns, measured before the sort.
+               Each combination runs in its own JVM (-Xmx is the memory budget) so the peak heap is per run.
+            c) Writes benchmark-<timestamp>.json and benchmark-<timestamp>.csv into the report directory.
+
+            $ sortlargefile-benchmark -r 1000000 -n 20 50 -t 4 8 -m 1g 4g -c 1 4 5
+            $ sortlargefile-benchmark -r 1000000 -n 20 --spill-io buffered direct
+            $ sortlargefile-benchmark -r 1000000 -n 20 --sort-engine comparison radix
+            $ sortlargefile-benchmark -r 1000000 -n 20 --scanner scalar vector
+         */
+
+        Options options = new Options();
+        options.addOption(Option.builder("r")
+                .longOpt("rows")
+                .desc("Rows to generate (default 100000)")
+                .hasArg()
+                .argName("ROWS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("num-columns")
+                .desc("Columns to generate (default 9)")
+                .hasArg()
+                .argName("NUM-COLUMNS")
+                .build());
+        options.addOption(Option.builder("k")
+                .longOpt("cardinality")
+                .desc("Distinct values per sort column (default 1000)")
+                .hasArg()
+                .argName("CARDINALITY")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("skew")
+                .desc("Zipf exponent of the sort column values, 0 is uniform (default 0)")
+                .hasArg()
+                .argName("SKEW")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("presorted")
+                .desc("Fraction of rows already in order, 0 to 1 (default 0)")
+                .hasArg()
+                .argName("PRESORTED")
+                .build());
+        options.addOption(Option.builder("s")
+                .longOpt("seed")
+                .desc("Random seed (default 42)")
+                .hasArg()
+                .argName("SEED")
+                .build());
+        options.addOption(Option.builder("n")
+                .longOpt("number-files-to-split")
+                .desc("Split counts to sweep (default 20 50)")
+                .hasArgs()
+                .argName("NUMBER-FILES-TO-SPLIT")
+                .build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .desc("Thread counts to sweep (default " + SortLargeFileParallel.MAX_NUM_FILE_SORTERS + ")")
+                .hasArgs()
+                .argName("THREADS")
+                .build());
+        options.addOption(Option.builder("m")
+                .longOpt("memory")
+                .desc("Memory budgets (-Xmx) to sweep, e.g. 512m 2g (default JVM default)")
+                .hasArgs()
+                .argName("MEMORY")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("spill-io")
+                .desc("Spill I/O to sweep: buffered, direct (default buffered)")
+                .hasArgs()
+                .argName("SPILL-IO")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("sort-engine")
+                .desc("Sort engines to sweep: comparison, radix (default comparison)")
+                .hasArgs()
+                .argName("SORT-ENGINE")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("scanner")
+                .desc("Byte scanners to sweep: scalar, vector (default scalar)")
+                .hasArgs()
+                .argName("SCANNER")
+                .build());
+        options.addOption(Option.builder("c")
+                .longOpt("columns-to-sort")
+                .desc("Columns to sort by (default 1 4 5)")
+                .hasArgs()
+                .argName("COLUMNS-TO-SORT-BY")
+                .build());
+        options.addOption(Option.builder("o")
+                .longOpt("report-dir")
+                .desc("Directory for the dataset and the reports (default benchmark)")
+                .hasArg()
+                .argName("REPORT-DIR")
+                .build());
+        options.addOption(Option.builder("f")
+                .longOpt("file-name")
+                .desc("Use this csv instead of generating one")
+                .hasArg()
+                .argName("FILE-NAME")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("run-one")
+                .desc("Internal: run a single configuration in this JVM and print the result")
+                .build());
+
+        CommandLineParser parser = new DefaultParser();
+        CommandLine cmd = null;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.setOptionComparator(null);
+            formatter.printHelp("sortlargefile-benchmark", options);
+            return;
+        }
+
+        String[] splits = cmd.hasOption("n") ? cmd.getOptionValues("n") : new String[]{"20", "50"};
+        String[] threads = cmd.hasOption("t") ? cmd.getOptionValues("t")
+                : new String[]{String.valueOf(SortLargeFileParallel.MAX_NUM_FILE_SORTERS)};
+        String[] memory = cmd.hasOption("m") ? cmd.getOptionValues("m") : new String[]{""};
+        String[] columns = cmd.hasOption("c") ? cmd.getOptionValues("c") : new String[]{"1", "4", "5"};
+        String[] spillIo = cmd.hasOption("spill-io") ? cmd.getOptionValues("spill-io") : new String[]{BUFFERED};
+        for (String io : spillIo) {
+            if (!BUFFERED.equals(io) && !DIRECT.equals(io)) {
+                throw new RuntimeException("Unknown spill I/O " + io);
+            }
+        }
+        String[] engines = cmd.hasOption("sort-engine") ? cmd.getOptionValues("sort-engine")
+                : new String[]{RadixSorter.COMPARISON};
+        for (String engine : engines) {
+            if (!RadixSorter.COMPARISON.equals(engine) && !RadixSorter.RADIX.equals(engine)) {
+                throw new RuntimeException("Unknown sort engine " + engine);
+            }
+        }
+        String[] scanners = cmd.hasOption("scanner") ? cmd.getOptionValues("scanner")
+                : new String[]{ByteScanner.SCALAR};
+        for (String scanner : scanners) {
+            if (!ByteScanner.SCALAR.equals(scanner) && !ByteScanner.VECTOR.equals(scanner)) {
+                throw new RuntimeException("Unknown scanner " + scanner);
+            }
+        }
+
+        if (cmd.hasOption("run-one")) {
+            runOne(cmd.getOptionValue("f"), Integer.valueOf(splits[0]), Integer.valueOf(threads[0]), toInts(columns),
+                    DIRECT.equals(spillIo[0]), RadixSorter.RADIX.equals(engines[0]));
+            return;
+        }
+
+        File reportDir = new File(cmd.getOptionValue("o", "benchmark"));
+        reportDir.mkdirs();
+
+        Dataset dataset = new Dataset(
+                Long.valueOf(cmd.getOptionValue("r", "100000")),
+                Integer.valueOf(cmd.getOptionValue("num-columns", "9")),
+                Integer.valueOf(cmd.getOptionValue("k", "1000")),
+                Double.valueOf(cmd.getOptionValue("skew", "0")),
+                Double.valueOf(cmd.getOptionValue("presorted", "0")),
+                Long.valueOf(cmd.getOptionValue("s", "42")),
+                toInts(columns));
+
+        File dataFile;
+        if (cmd.hasOption("f")) {
+            dataFile = new File(cmd.getOptionValue("f"));
+        } else {
+            dataFile = new File(reportDir, dataset.fileName());
+            if (!dataFile.exists()) {
+                System.out.println("Generating dataset: " + dataFile.getPath());
+                dataset.write(dataFile);
+            }
+        }
+
+        List<Map<String, String>> results = new ArrayList<>();
+        for (String mem : memory) {
+            for (String split : splits) {
+                for (String thread : threads) {
+                    for (String io : spillIo) {
+                        for (String engine : engines) {
+                            for (String scanner : scanners) {
+                                System.out.println(String.format("Running: splits=%s threads=%s memory=%s spill-io=%s sort-engine=%s scanner=%s",
+                                        split, thread, mem.isEmpty() ? "default" : mem, io, engine, scanner));
+                                Map<String, String> result = fork(dataFile, split, thread, mem, io, engine, scanner,
+                                        columns);
+                                results.add(result);
+                                System.out.println(String.format("  split %s ms, sort %s ms (in memory %s ms), merge %s ms, total %s ms, peak heap %s bytes, spill %s MB/sec, scan %s MB/sec",
+                                        result.get("split_ms"), result.get("sort_ms"), result.get("in_memory_sort_ms"),
+                                        result.get("merge_ms"), result.get("total_ms"), result.get("peak_heap_bytes"),
+                                        result.get("spill_mb_per_sec"), result.get("scan_mb_per_sec")));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File json = new File(reportDir, "benchmark-" + timestamp + ".json");
+        File csv = new File(reportDir, "benchmark-" + timestamp + ".csv");
+        writeJson(json, dataFile, dataset, cmd.hasOption("f"), columns, results);
+        writeCsv(csv, results);
+        System.out.println("Reports: " + json.getPath() + ", " + csv.getPath());
+    }
+
+    private static int[] toInts(String[] values) {
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.valueOf(values[i]);
+        }
+        return ints;
+    }
+
+    private static void runOne(String fileName, int splits, int threads, int[] columns, boolean directIo,
+                               boolean radixSort) {
+        SortLimits limits = new SortLimits();
+        limits.splitIntoNumFiles = splits;
+        limits.numFileSorters = threads;
+        limits.directIo = directIo;
+        limits.radixSort = radixSort;
+        limits.probeDisk = true;
+        limits.useHistory = true;
+        double scanMbPerSec = scan(new File(fileName));
+        SortCommand sortLargeFile = new SortCommand(fileName, new KeySpec(columns), limits,
+                SortLargeFileParallel.RESULT_SUFFIX);
+        sortLargeFile.sort();
+
+        SortMetrics metrics = sortLargeFile.sorter.metrics;
+        long bytesRead = 0;
+        long bytesWritten = 0;
+        for (SortMetrics.Phase phase : metrics.phases) {
+            bytesRead += phase.bytesRead.sum();
+            bytesWritten += phase.bytesWritten.sum();
+        }
+        // spills are written while sorting and intermediate merging, and read back while merging
+        long spillMillis = metrics.phase(SortMetrics.SORT).millis() + metrics.phase(SortMetrics.MERGE).millis();
+        long spillBytes = metrics.spillBytes.sum();
+        System.out.println(RESULT_PREFIX + metrics.phase(SortMetrics.SPLIT).millis() + ","
+                + metrics.phase(SortMetrics.SORT).millis() + "," + metrics.phase(SortMetrics.MERGE).millis() + ","
+                + metrics.totalMillis() + "," + bytesRead + "," + bytesWritten + "," + metrics.peakHeapBytes() + ","
+                + spillBytes + "," + String.format(Locale.ROOT, "%.1f",
+                spillBytes / 1024.0 / 1024.0 * 1000.0 / Math.max(1, spillMillis)) + ","
+                + metrics.inMemorySortNanos.sum() / 1000000 + "," + metrics.comparisons.sum() + ","
+                + String.format(Locale.ROOT, "%.1f", scanMbPerSec));
+    }
+
+    // MB/sec of reading the file into lines and columns with the scanner of this JVM, nothing else
+    private static double scan(File file) {
+        long start = System.nanoTime();
+        long columns = 0;
+        try (RangeLineReader reader = new RangeLineReader(file, 0, file.length(), 1024 * 1024)) {
+            String[] row;
+            while ((row = reader.readColumns()) != null) {
+                columns += row.length;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot scan " + file);
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        System.out.println("Scanned " + columns + " columns with the " + ByteScanner.get().name() + " scanner");
+        return file.length() / 1024.0 / 1024.0 * 1e9 / nanos;
+    }
+
+    private static Map<String, String> fork(File dataFile, String splits, String threads, String memory, String spillIo,
+                                            String engine, String scanner, String[] columns) {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (!memory.isEmpty()) {
+            command.add("-Xmx" + memory);
+        }
+        if (ByteScanner.VECTOR.equals(scanner)) {
+            command.add("--add-modules");
+            command.add(VECTOR_MODULE);
+        }
+        command.add("-D" + ByteScanner.PROPERTY + "=" + scanner);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SortLargeFileBenchmark.class.getName());
+        command.add("--run-one");
+        command.addAll(Arrays.asList("-f", dataFile.getPath(), "-n", splits, "-t", threads, "--spill-io", spillIo,
+                "--sort-engine", engine, "-c"));
+        command.addAll(Arrays.asList(columns));
+
+        String resultLine = null;
+        try {
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    resultLine = line.substring(RESULT_PREFIX.length());
+                }
+            }
+            br.close();
+            if (process.waitFor() != 0 || resultLine == null) {
+                throw new RuntimeException("Benchmark run failed: " + String.join(" ", command));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot start benchmark run");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Benchmark interrupted");
+        }
+
+        String[] values = (splits + "," + threads + "," + (memory.isEmpty() ? "default" : memory) + "," + spillIo + ","
+                + engine + "," + scanner + "," + resultLine)
+                .split(",", -1);
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < RESULT_FIELDS.length; i++) {
+            result.put(RESULT_FIELDS[i], values[i]);
+        }
+        return result;
+    }
+
+    private static void writeJson(File file, File dataFile, Dataset dataset, boolean external, String[] columns,
+                                  List<Map<String, String>> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"dataset\": {\n");
+        sb.append("    \"file\": \"").append(dataFile.getPath().replace("\\", "\\\\")).append("\",\n");
+        sb.append("    \"bytes\": ").append(dataFile.length()).append(",\n");
+        if (!external) {
+            sb.append("    \"rows\": ").append(dataset.rows).append(",\n");
+            sb.append("    \"columns\": ").append(dataset.numColumns).append(",\n");
+            sb.append("    \"cardinality\": ").append(dataset.cardinality).append(",\n");
+            sb.append("    \"skew\": ").append(dataset.skew).append(",\n");
+            sb.append("    \"presorted\": ").append(dataset.presorted).append(",\n");
+            sb.append("    \"seed\": ").append(dataset.seed).append(",\n");
+        }
+        sb.append("    \"sort_columns\": [").append(String.join(", ", columns)).append("]\n");
+        sb.append("  },\n");
+        sb.append("  \"runs\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    {");
+            int field = 0;
+            for (Map.Entry<String, String> entry : results.get(i).entrySet()) {
+                String value = Arrays.asList(TEXT_FIELDS).contains(entry.getKey())
+                        ? "\"" + entry.getValue() + "\"" : entry.getValue();
+                sb.append(field++ == 0 ? "" : ", ").append("\"").append(entry.getKey()).append("\": ").append(value);
+            }
+            sb.append(i < results.size() - 1 ? "},\n" : "}\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}\n");
+        write(file, sb.toString());
+    }
+
+    private static void writeCsv(File file, List<Map<String, String>> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.join(",", RESULT_FIELDS)).append("\n");
+        for (Map<String, String> result : results) {
+            sb.append(String.join(",", result.values())).append("\n");
+        }
+        write(file, sb.toString());
+    }
+
+    private static void write(File file, String content) {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot write report " + file.getPath());
+        }
+    }
+
+    static class Dataset {
+        long rows;
+        int numColumns;
+        int cardinality;
+        double skew;
+        double presorted;
+        long seed;
+        int[] sortColumns;
+
+        Dataset(long rows, int numColumns, int cardinality, double skew, double presorted, long seed, int[] sortColumns) {
+            this.rows = rows;
+            this.numColumns = numColumns;
+            this.cardinality = cardinality;
+            this.skew = skew;
+            this.presorted = presorted;
+            this.seed = seed;
+            this.sortColumns = sortColumns;
+            for (int column : sortColumns) {
+                if (column >= numColumns) {
+                    throw new RuntimeException("Sort column " + column + " is not in a " + numColumns + " column dataset");
+                }
+            }
+        }
+
+        String fileName() {
+            return String.format(Locale.ROOT, "dataset-r%d-c%d-k%d-s%s-p%s-seed%d.csv", rows, numColumns, cardinality,
+                    skew, presorted, seed);
+        }
+
+        void write(File file) {
+            Random random = new Random(seed);
+            double[] cdf = zipfCdf(cardinality, skew);
+            boolean[] isSortColumn = new boolean[numColumns];
+            for (int column : sortColumns) {
+                isSortColumn[column] = true;
+            }
+
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+                String[] row = new String[numColumns];
+                for (int i = 0; i < numColumns; i++) {
+                    row[i] = "column_" + i;
+                }
+                writer.write(String.join(",", row) + "\n");
+
+                for (long r = 0; r < rows; r++) {
+                    // presorted rows take the key that keeps the first sort columns in order
+                    boolean inOrder = random.nextDouble() < presorted;
+                    int orderedKey = (int) (r * cardinality / rows);
+                    for (int i = 0; i < numColumns; i++) {
+                        if (isSortColumn[i]) {
+                            int key = inOrder ? orderedKey : sample(cdf, random.nextDouble());
+                            row[i] = String.format("key%d_%07d", i, key);
+                        } else {
+                            row[i] = randomValue(random, 8 + random.nextInt(24));
+                        }
+                    }
+                    writer.write(String.join(",", row) + "\n");
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Cannot write dataset " + file.getPath());
+            }
+        }
+
+        private static double[] zipfCdf(int cardinality, double skew) {
+            double[] cdf = new double[cardinality];
+            double sum = 0;
+            for (int i = 0; i < cardinality; i++) {
+                sum += 1.0 / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < cardinality; i++) {
+                cdf[i] /= sum;
+            }
+            return cdf;
+        }
+
+        private static int sample(double[] cdf, double value) {
+            int index = Arrays.binarySearch(cdf, value);
+            index = index < 0 ? -index - 1 : index;
+            return Math.min(index, cdf.length - 1);
+        }
+
+        private static String randomValue(Random random, int length) {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                int c = random.nextInt(36);
+                chars[i] = (char) (c < 10 ? '0' + c : 'a' + c - 10);
+            }
+            return new String(chars);
+        }
+    }
+}
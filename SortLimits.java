@@ -0,0 +1,41 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+// Resources a sort may use. Null or 0 means the planner chooses.
+public class SortLimits {
+    long memoryBudgetBytes;
+    Integer numFileSorters;
+    Integer splitIntoNumFiles;
+    Integer mergeFanIn;
+    Integer bufferSizeBytes;
+    File workDir;
+    // the intermediate files go to the work dir if empty
+    List<File> tmpDirs = new ArrayList<>();
+    boolean placeByFreeSpace;
+    // intermediate files bypass the page cache
+    boolean directIo;
+    // MSD radix sort of the keys instead of comparison sort
+    boolean radixSort;
+    // low cardinality key columns sorted and merged on dictionary codes
+    boolean dictionary;
+    // runs and merges recorded in a manifest in the work dir and kept on failure, to resume
+    boolean checkpoint;
+    // runs spilled to files even if the whole input fits in memory
+    boolean external;
+    // only the keys and places of the rows are sorted, the rows are gathered from the input file (TagSorter)
+    boolean tagSort;
+    // input columns kept in the runs and the output, in this order, all if null
+    int[] select;
+    // rows kept, all if null
+    RowFilter where;
+    // the outputs are checked to be sorted once written (SortVerifier)
+    boolean verify;
+    // runs sorted in off-heap buffers, offHeapBytes 0 means the planner chooses
+    boolean offHeap;
+    long offHeapBytes;
+    // a disk probe for the buffer size, and the run history file read and appended to: off in-process, the
+    // commands turn them on
+    boolean probeDisk;
+    boolean useHistory;
+}
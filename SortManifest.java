@@ -0,0 +1,279 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+    Checkpoint of a sort in the work dir, so a sort restarted after a failure reuses the work already done
+    instead of splitting and sorting the whole input again. One tab separated record per line:
+
+    input   <path> <length> <last modified>    the fingerprint: every input file, the key columns, and the
+    keys    <columns>                         selected columns and the filter if any
+    select  <columns>
+    where   <filter>
+    fan-in  <merge fan-in>                    fixed at the first try, so merge groups are the same
+    source  <index> <path> <start> <end> <skip header> <spilled> <crc32 of a spilled file>
+    run     <index> <path> <bytes> <crc32>    a sorted run
+    merge   <name> <path> <bytes> <crc32> <input paths...>    an intermediate merge
+
+    It is rewritten (to a temp file, then renamed) after every run and merge. When it is opened again, entries
+    whose file is missing or has another length or checksum are dropped and redone; runs already merged are
+    kept as done. A manifest of other inputs or keys is ignored and its files deleted. Streams have no
+    fingerprint and are not checkpointed. Deleted once the last merge has been read to the end.
+ */
+public class SortManifest {
+    static String FILE_NAME = "sort-manifest.tsv";
+    static String SEPARATOR = "\t";
+
+    File file;
+    List<String> fingerprint = new ArrayList<>();
+    int mergeFanIn;
+    List<ExternalSorter.RunSource> sources;
+    Map<Integer, Entry> runs = new TreeMap<>();
+    Map<String, Entry> merges = new LinkedHashMap<>();
+    // inputs of valid merges: deleted, but done
+    Set<String> merged = new HashSet<>();
+
+    SortManifest(File file, InputSource input, KeySpec keySpec, SortLimits limits) {
+        this.file = file;
+        for (File inputFile : input.files) {
+            fingerprint.add(String.join(SEPARATOR, "input", inputFile.getAbsolutePath(),
+                    String.valueOf(inputFile.length()), String.valueOf(inputFile.lastModified())));
+        }
+        fingerprint.add(String.join(SEPARATOR, "keys", keySpec.toString()));
+        if (limits.select != null) {
+            fingerprint.add(String.join(SEPARATOR, "select", new KeySpec(limits.select).toString()));
+        }
+        if (limits.where != null) {
+            fingerprint.add(String.join(SEPARATOR, "where", limits.where.toString()));
+        }
+    }
+
+    // the manifest of the work dir if it is for the same input and keys, else a new one
+    static SortManifest open(File workDir, InputSource input, KeySpec keySpec, SortLimits limits, PrintStream log) {
+        SortManifest manifest = new SortManifest(new File(workDir, FILE_NAME), input, keySpec, limits);
+        if (!manifest.file.exists()) {
+            return manifest;
+        }
+        SortManifest previous = new SortManifest(manifest.file, input, keySpec, limits);
+        previous.fingerprint.clear();
+        try (BufferedReader br = new BufferedReader(new FileReader(manifest.file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                previous.read(line.split(SEPARATOR, -1));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.println("WARN: cannot read manifest " + manifest.file.getPath() + ", starting over: " + e.getMessage());
+            return manifest;
+        }
+        if (!previous.fingerprint.equals(manifest.fingerprint)) {
+            log.println("WARN: manifest " + manifest.file.getPath() + " is for another input or keys, starting over");
+            previous.deleteFiles();
+            previous.file.delete();
+            return manifest;
+        }
+        previous.verify(log);
+        return previous;
+    }
+
+    private void read(String[] values) {
+        switch (values[0]) {
+            case "input":
+            case "keys":
+            case "select":
+            case "where":
+                fingerprint.add(String.join(SEPARATOR, values));
+                break;
+            case "fan-in":
+                mergeFanIn = Integer.parseInt(values[1]);
+                break;
+            case "source":
+                if (sources == null) {
+                    sources = new ArrayList<>();
+                }
+                ExternalSorter.RunSource source = new ExternalSorter.RunSource(new File(values[2]),
+                        Long.parseLong(values[3]), Long.parseLong(values[4]), Boolean.parseBoolean(values[5]),
+                        Boolean.parseBoolean(values[6]));
+                source.checksum = Long.parseLong(values[7]);
+                sources.add(source);
+                break;
+            case "run":
+                runs.put(Integer.valueOf(values[1]), new Entry(new File(values[2]), Long.parseLong(values[3]),
+                        Long.parseLong(values[4]), Collections.emptyList()));
+                break;
+            case "merge":
+                merges.put(values[1], new Entry(new File(values[2]), Long.parseLong(values[3]),
+                        Long.parseLong(values[4]), Arrays.asList(values).subList(5, values.length)));
+                break;
+            default:
+                throw new RuntimeException("Unknown manifest record " + values[0]);
+        }
+    }
+
+    // drops what has to be redone
+    private void verify(PrintStream log) {
+        // later passes first: the inputs of a valid merge are done even if deleted
+        List<String> names = new ArrayList<>(merges.keySet());
+        Collections.reverse(names);
+        for (String name : names) {
+            Entry merge = merges.get(name);
+            if (merged.contains(merge.file.getPath()) || isIntact(merge)) {
+                merged.addAll(merge.inputs);
+            } else {
+                merges.remove(name);
+            }
+        }
+        runs.values().removeIf(run -> !merged.contains(run.file.getPath()) && !isIntact(run));
+
+        if (sources != null) {
+            for (int i = 0; i < sources.size(); i++) {
+                ExternalSorter.RunSource source = sources.get(i);
+                // a spilled file is sorted in place, unusable if that was interrupted
+                boolean lost = source.spilled && !runs.containsKey(i)
+                        && (source.file.length() != source.end || checksum(source.file) != source.checksum);
+                if (lost || (!source.spilled && !source.file.isFile())) {
+                    log.println("WARN: " + source.file.getPath() + " of manifest " + file.getPath()
+                            + " is lost, starting over");
+                    deleteFiles();
+                    sources = null;
+                    runs.clear();
+                    merges.clear();
+                    merged.clear();
+                    mergeFanIn = 0;
+                    return;
+                }
+            }
+            log.println("Resuming from " + file.getPath() + ": " + runs.size() + " of " + sources.size()
+                    + " runs sorted, " + merges.size() + " merges done");
+        }
+    }
+
+    private static boolean isIntact(Entry entry) {
+        return entry.file.isFile() && entry.file.length() == entry.bytes && checksum(entry.file) == entry.checksum;
+    }
+
+    static long checksum(File file) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+        return crc.getValue();
+    }
+
+    boolean isSorted(int source) {
+        return runs.containsKey(source);
+    }
+
+    File run(int source) {
+        return runs.get(source).file;
+    }
+
+    File merge(String name) {
+        Entry merge = merges.get(name);
+        return merge != null ? merge.file : null;
+    }
+
+    synchronized void sourcesSplit(List<ExternalSorter.RunSource> sources, int mergeFanIn) {
+        this.sources = new ArrayList<>(sources);
+        this.mergeFanIn = mergeFanIn;
+        save();
+    }
+
+    synchronized void runSorted(int source, File run, long checksum) {
+        runs.put(source, new Entry(run, run.length(), checksum, Collections.emptyList()));
+        save();
+    }
+
+    synchronized void runsMerged(String name, File output, long checksum, List<File> inputs) {
+        List<String> paths = new ArrayList<>();
+        for (File input : inputs) {
+            paths.add(input.getPath());
+        }
+        merges.put(name, new Entry(output, output.length(), checksum, paths));
+        save();
+    }
+
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (String line : fingerprint) {
+                writer.write(line + "\n");
+            }
+            writer.write("fan-in" + SEPARATOR + mergeFanIn + "\n");
+            for (int i = 0; i < sources.size(); i++) {
+                ExternalSorter.RunSource source = sources.get(i);
+                writer.write(String.join(SEPARATOR, "source", String.valueOf(i), source.file.getPath(),
+                        String.valueOf(source.start), String.valueOf(source.end), String.valueOf(source.skipHeader),
+                        String.valueOf(source.spilled), String.valueOf(source.checksum)) + "\n");
+            }
+            for (Map.Entry<Integer, Entry> run : runs.entrySet()) {
+                writer.write(String.join(SEPARATOR, "run", String.valueOf(run.getKey()), run.getValue().toString())
+                        + "\n");
+            }
+            for (Map.Entry<String, Entry> merge : merges.entrySet()) {
+                List<String> values = new ArrayList<>(Arrays.asList("merge", merge.getKey(),
+                        merge.getValue().toString()));
+                values.addAll(merge.getValue().inputs);
+                writer.write(String.join(SEPARATOR, values) + "\n");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot write manifest " + tmp.getPath());
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot write manifest " + file.getPath());
+        }
+    }
+
+    // the intermediate files of the manifest, not the inputs
+    private void deleteFiles() {
+        if (sources != null) {
+            for (ExternalSorter.RunSource source : sources) {
+                if (source.spilled) {
+                    source.file.delete();
+                }
+            }
+        }
+        for (Entry run : runs.values()) {
+            run.file.delete();
+        }
+        for (Entry merge : merges.values()) {
+            merge.file.delete();
+        }
+    }
+
+    // the sort is complete
+    synchronized void delete() {
+        file.delete();
+    }
+
+    static class Entry {
+        File file;
+        long bytes;
+        long checksum;
+        List<String> inputs;
+
+        Entry(File file, long bytes, long checksum, List<String> inputs) {
+            this.file = file;
+            this.bytes = bytes;
+            this.checksum = checksum;
+            this.inputs = inputs;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(SEPARATOR, file.getPath(), String.valueOf(bytes), String.valueOf(checksum));
+        }
+    }
+}
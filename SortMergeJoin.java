@@ -0,0 +1,434 @@
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/*
+    Joins two csv files on key columns, neither of which has to fit in memory:
+
+    a) Every side is checked for being sorted by its keys already, by streaming it until two rows are out of
+       order. A sorted side is read as it is, any other is sorted on its keys by an ExternalSorter (split,
+       sort and merge as usual, with half the memory budget each as both are read at once).
+    b) Both sides are merged on their keys. The right rows of one key are a group, held in memory up to
+       --group-rows rows and spilled to a file of the work dir after that, so any number of duplicates of a
+       key is joined in bounded memory; the group is read again for every left row of the key.
+
+    inner  every left row with every right row of the same key: the left columns, then the right columns
+           that are not keys
+    left   the same, and the left rows without a right row with empty right columns
+    semi   every left row that has a right row of the same key, once, with its own columns only
+
+    Keys compare like the sort order (strings). The output is in the order of the left keys, without a header.
+
+    $ sortlargefile-join --left events.csv --left-keys 2 --right products.csv --right-keys 0 -o joined.csv
+ */
+public class SortMergeJoin {
+    static String INNER = "inner";
+    static String LEFT = "left";
+    static String SEMI = "semi";
+    static int GROUP_ROWS_IN_MEMORY = 100000;
+    static int BUFFER_BYTES = 1024 * 1024;
+
+    String type = INNER;
+    int groupRowsInMemory = GROUP_ROWS_IN_MEMORY;
+    File workDir;
+    PrintStream log = System.out;
+    // a disk probe when a side is sorted (SortLimits.probeDisk): off in-process, main turns it on
+    boolean probeDisk;
+
+    // of the last join
+    long leftRows;
+    long rightRows;
+    long outputRows;
+
+    public SortMergeJoin(String type, File workDir) {
+        if (!INNER.equals(type) && !LEFT.equals(type) && !SEMI.equals(type)) {
+            throw new RuntimeException("Unknown join type " + type + ", expected " + INNER + ", " + LEFT + " or "
+                    + SEMI);
+        }
+        this.type = type;
+        this.workDir = workDir;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder()
+                .longOpt("left")
+                .desc("Left file, with a header line (gzip or not)")
+                .hasArg()
+                .argName("FILE-NAME")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("right")
+                .desc("Right file, with a header line (gzip or not)")
+                .hasArg()
+                .argName("FILE-NAME")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("left-keys")
+                .desc("Key columns of the left file")
+                .hasArgs()
+                .argName("COLUMNS")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("right-keys")
+                .desc("Key columns of the right file, as many as --left-keys")
+                .hasArgs()
+                .argName("COLUMNS")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("type")
+                .desc("Join type: inner, left or semi (default inner)")
+                .hasArg()
+                .argName("TYPE")
+                .build());
+        options.addOption(Option.builder("o")
+                .longOpt("output")
+                .desc("Joined file (default <left>-join-<right>.csv next to the left file)")
+                .hasArg()
+                .argName("OUTPUT")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("work-dir")
+                .desc("Directory for the sorted runs of both sides and the spilled groups (default <left>-result-join/)")
+                .hasArg()
+                .argName("WORK-DIR")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("group-rows")
+                .desc("Right rows of one key held in memory, the rest spilled (default " + GROUP_ROWS_IN_MEMORY + ")")
+                .hasArg()
+                .argName("ROWS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("no-probe")
+                .desc("Do not probe the disk throughput when planning the sort of a side")
+                .build());
+        CommandLine cmd = SortCommand.parse(options, args, "sortlargefile-join");
+        if (cmd == null) {
+            return;
+        }
+
+        File left = new File(cmd.getOptionValue("left"));
+        File right = new File(cmd.getOptionValue("right"));
+        String leftName = InputSource.stripGzipExtension(left.getPath()).replaceAll(ExternalSorter.CSV_EXTENSION, "");
+        File workDir = cmd.hasOption("work-dir") ? new File(cmd.getOptionValue("work-dir"))
+                : new File(leftName + "-result-join/");
+        File output = cmd.hasOption("o") ? new File(cmd.getOptionValue("o"))
+                : new File(leftName + "-join-" + InputSource.stripGzipExtension(right.getName()));
+        SortMergeJoin join = new SortMergeJoin(cmd.getOptionValue("type", INNER), workDir);
+        if (cmd.hasOption("group-rows")) {
+            join.groupRowsInMemory = Integer.parseInt(cmd.getOptionValue("group-rows"));
+        }
+        join.probeDisk = !cmd.hasOption("no-probe");
+        join.join(left, KeySpec.parse(cmd.getOptionValues("left-keys")), right,
+                KeySpec.parse(cmd.getOptionValues("right-keys")), output);
+    }
+
+    public void join(File left, KeySpec leftKeys, File right, KeySpec rightKeys, File output) {
+        if (leftKeys.isCollated() || rightKeys.isCollated()) {
+            throw new RuntimeException("Join keys are compared as they are, not collated");
+        }
+        if (leftKeys.columns.length != rightKeys.columns.length) {
+            throw new RuntimeException("Left keys " + leftKeys + " and right keys " + rightKeys
+                    + " are not as many");
+        }
+        long start = System.currentTimeMillis();
+        workDir.mkdirs();
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        int rightColumns = header(right).length;
+        boolean[] rightKey = new boolean[rightColumns];
+        for (int column : rightKeys.columns) {
+            if (column >= rightColumns) {
+                throw new RuntimeException("Right key " + column + " is not in the " + rightColumns
+                        + " columns of " + right.getPath());
+            }
+            rightKey[column] = true;
+        }
+
+        leftRows = 0;
+        rightRows = 0;
+        outputRows = 0;
+        try (Side leftSide = side(left, leftKeys, "left");
+             Side rightSide = side(right, rightKeys, "right");
+             Group group = new Group(new File(workDir, "group.csv"), groupRowsInMemory);
+             BufferedWriter writer = new BufferedWriter(new FileWriter(output, ExternalSorter.CHARSET), BUFFER_BYTES)) {
+            String[] rightRow = next(rightSide);
+            String[] groupKey = null;
+            String[] empty = new String[rightColumns - rightKeys.columns.length];
+            Arrays.fill(empty, "");
+            while (leftSide.hasNext()) {
+                String[] leftRow = leftSide.next();
+                leftRows++;
+                String[] key = key(leftRow, leftKeys.columns);
+                if (groupKey == null || compare(key, groupKey) != 0) {
+                    // the right rows of this key, after the ones of smaller keys
+                    groupKey = key;
+                    group.clear();
+                    while (rightRow != null && compare(key(rightRow, rightKeys.columns), key) < 0) {
+                        rightRow = next(rightSide);
+                    }
+                    while (rightRow != null && compare(key(rightRow, rightKeys.columns), key) == 0) {
+                        group.add(rightRow);
+                        rightRow = next(rightSide);
+                    }
+                }
+                if (SEMI.equals(type)) {
+                    if (group.size > 0) {
+                        write(writer, leftRow, null, null);
+                    }
+                } else if (group.size == 0) {
+                    if (LEFT.equals(type)) {
+                        write(writer, leftRow, empty, null);
+                    }
+                } else {
+                    Iterator<String[]> rows = group.rows();
+                    while (rows.hasNext()) {
+                        write(writer, leftRow, rows.next(), rightKey);
+                    }
+                }
+            }
+            // the right rows after the last left key are only counted
+            while (rightRow != null) {
+                rightRow = next(rightSide);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error joining " + left.getPath() + " and " + right.getPath());
+        }
+        log.println("Joined " + leftRows + " left rows and " + rightRows + " right rows into " + outputRows
+                + " rows (" + type + " join) in " + (System.currentTimeMillis() - start) / 1000.0 + " sec");
+        log.println("Joined file: " + output.getPath());
+    }
+
+    private String[] next(Side side) {
+        if (!side.hasNext()) {
+            return null;
+        }
+        rightRows++;
+        return side.next();
+    }
+
+    // the left columns, then the right columns that are not keys
+    private void write(BufferedWriter writer, String[] leftRow, String[] rightRow, boolean[] rightKey)
+            throws IOException {
+        writer.write(String.join(ExternalSorter.CSV_SPLIT_BY, leftRow));
+        if (rightRow != null) {
+            for (int i = 0; i < rightRow.length; i++) {
+                if (rightKey == null || i >= rightKey.length || !rightKey[i]) {
+                    writer.write(ExternalSorter.CSV_SPLIT_BY);
+                    writer.write(rightRow[i]);
+                }
+            }
+        }
+        writer.write('\n');
+        outputRows++;
+    }
+
+    // the rows of a file in key order, the file itself if it is sorted already
+    private Side side(File file, KeySpec keys, String name) throws IOException {
+        InputSource input = InputSource.file(file.getPath());
+        if (input.gzipFiles.isEmpty() && isSorted(file, keys)) {
+            log.println("The " + name + " file " + file.getPath() + " is sorted by " + keys + " already");
+            RangeLineReader reader = new RangeLineReader(file, 0, file.length(), BUFFER_BYTES);
+            reader.readLine();
+            return new Side(reader, null);
+        }
+        log.println("Sorting the " + name + " file " + file.getPath() + " by " + keys);
+        SortLimits limits = new SortLimits();
+        limits.workDir = new File(workDir, name);
+        // both sides are read at the same time
+        limits.memoryBudgetBytes = (long) (Runtime.getRuntime().maxMemory() * SortPlanner.USABLE_HEAP_FRACTION / 2);
+        limits.probeDisk = probeDisk;
+        ExternalSorter sorter = new ExternalSorter(keys, limits);
+        sorter.log = log;
+        return new Side(null, sorter.sort(input));
+    }
+
+    // reads the file until two rows are out of order, so an unsorted file is usually given up on early
+    private static boolean isSorted(File file, KeySpec keys) throws IOException {
+        try (RangeLineReader reader = new RangeLineReader(file, 0, file.length(), BUFFER_BYTES)) {
+            reader.readLine();
+            String[] previous = null;
+            String[] row;
+            while ((row = reader.readColumns()) != null) {
+                String[] key = key(row, keys.columns);
+                if (previous != null && compare(previous, key) > 0) {
+                    return false;
+                }
+                previous = key;
+            }
+            return true;
+        }
+    }
+
+    private static String[] header(File file) {
+        // gzip or not
+        try (BufferedReader reader = InputSource.file(file.getPath()).open(file, BUFFER_BYTES, 1)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new RuntimeException("No header line in " + file.getPath());
+            }
+            return header.split(ExternalSorter.CSV_SPLIT_BY, -1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot read " + file.getPath());
+        }
+    }
+
+    static String[] key(String[] row, int[] columns) {
+        String[] key = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] >= row.length) {
+                throw new RuntimeException("Key column " + columns[i] + " is not in a row of " + row.length
+                        + " columns");
+            }
+            key[i] = row[columns[i]];
+        }
+        return key;
+    }
+
+    // like ColumnsComparator on the key columns
+    static int compare(String[] keyOne, String[] keyTwo) {
+        for (int i = 0; i < keyOne.length; i++) {
+            int comparison = keyOne[i].compareTo(keyTwo[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return 0;
+    }
+
+    // a file read as it is, or the merge of its sorted runs
+    static class Side implements Iterator<String[]>, Closeable {
+        RangeLineReader reader;
+        SortedRows sorted;
+        String[] next;
+
+        Side(RangeLineReader reader, SortedRows sorted) {
+            this.reader = reader;
+            this.sorted = sorted;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (sorted != null) {
+                return sorted.hasNext();
+            }
+            if (next == null) {
+                try {
+                    next = reader.readColumns();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    throw new RuntimeException("Error reading sorted rows");
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public String[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (sorted != null) {
+                return sorted.next();
+            }
+            String[] row = next;
+            next = null;
+            return row;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (sorted != null) {
+                sorted.close();
+            } else {
+                reader.close();
+            }
+        }
+    }
+
+    // the right rows of one key: the first maxRows in memory, the others in the spill file
+    static class Group implements Closeable {
+        File spill;
+        int maxRows;
+        List<String[]> rows = new ArrayList<>();
+        BufferedWriter spillWriter;
+        long size;
+
+        Group(File spill, int maxRows) {
+            this.spill = spill;
+            this.maxRows = maxRows;
+        }
+
+        void add(String[] row) throws IOException {
+            size++;
+            if (rows.size() < maxRows) {
+                rows.add(row);
+                return;
+            }
+            if (spillWriter == null) {
+                spillWriter = new BufferedWriter(new FileWriter(spill, ExternalSorter.CHARSET), BUFFER_BYTES);
+            }
+            spillWriter.write(String.join(ExternalSorter.CSV_SPLIT_BY, row));
+            spillWriter.write('\n');
+        }
+
+        void clear() throws IOException {
+            rows.clear();
+            size = 0;
+            if (spillWriter != null) {
+                spillWriter.close();
+                spillWriter = null;
+            }
+            spill.delete();
+        }
+
+        // all the rows, the spilled ones read again from the file
+        Iterator<String[]> rows() throws IOException {
+            if (spillWriter == null) {
+                return rows.iterator();
+            }
+            spillWriter.flush();
+            Iterator<String[]> inMemory = rows.iterator();
+            RangeLineReader reader = new RangeLineReader(spill, 0, spill.length(), BUFFER_BYTES);
+            Side spilled = new Side(reader, null);
+            return new Iterator<String[]>() {
+                @Override
+                public boolean hasNext() {
+                    if (inMemory.hasNext()) {
+                        return true;
+                    }
+                    boolean more = spilled.hasNext();
+                    if (!more) {
+                        try {
+                            spilled.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    return more;
+                }
+
+                @Override
+                public String[] next() {
+                    return inMemory.hasNext() ? inMemory.next() : spilled.next();
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            clear();
+        }
+    }
+}
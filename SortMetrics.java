@@ -0,0 +1,425 @@
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+    Counters for one sort run. Updated from the hot paths (split loop, sorter threads, merge loop),
+    read live through JMX and written as a json report when the run ends.
+ */
+public class SortMetrics implements SortMetricsMBean {
+    static String SPLIT = "split";
+    static String SORT = "sort";
+    static String MERGE = "merge";
+
+    String name;
+    long startMillis;
+    long endMillis;
+    List<Phase> phases = new ArrayList<>();
+    volatile Phase currentPhase;
+
+    LongAdder comparisons = new LongAdder();
+    LongAdder spillBytes = new LongAdder();
+    // time sorting runs in memory, without reading and writing them
+    LongAdder inMemorySortNanos = new LongAdder();
+    List<Long> runSizes = Collections.synchronizedList(new ArrayList<>());
+    // runs open at once in the last merge, the most of any order
+    volatile int mergeFanIn;
+    // stretches of overlapping runs in the last merge of every order, runs copied instead of merged as they
+    // overlapped no other
+    volatile int mergeStretches;
+    LongAdder runsCopied = new LongAdder();
+    LongAdder bytesCopied = new LongAdder();
+    // the pool of the sorter threads, its queue holds the sort tasks waiting for a thread
+    volatile ThreadPoolExecutor sortExecutor;
+    AtomicInteger maxSortQueueDepth = new AtomicInteger();
+    Histogram sortTaskLatency = new Histogram();
+    volatile long offHeapPeakBytes;
+    // key columns with dictionary codes, comparisons of equal codes that still compared strings
+    volatile int dictionaryColumns;
+    LongAdder dictionaryFallbacks = new LongAdder();
+    // rows tested by the filter of the sort (null if none) and rows it kept
+    volatile String filter;
+    LongAdder filterRowsRead = new LongAdder();
+    LongAdder filterRowsKept = new LongAdder();
+    long gcMillisAtStart;
+    long gcMillisAtEnd = -1;
+    ObjectName objectName;
+
+    public SortMetrics(String name) {
+        this.name = name;
+    }
+
+    public void start() {
+        startMillis = System.currentTimeMillis();
+        gcMillisAtStart = collectorMillis();
+        try {
+            objectName = new ObjectName("sortlargefile:type=SortMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            // metrics stay available in the report even if jmx registration fails
+            System.err.println("WARN: cannot register metrics mbean: " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    public void stop() {
+        endMillis = System.currentTimeMillis();
+        gcMillisAtEnd = collectorMillis();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                System.err.println("WARN: cannot unregister metrics mbean: " + e.getMessage());
+            }
+        }
+    }
+
+    public Phase startPhase(String phaseName) {
+        Phase phase = new Phase(phaseName);
+        synchronized (phases) {
+            phases.add(phase);
+        }
+        currentPhase = phase;
+        return phase;
+    }
+
+    public Phase phase(String phaseName) {
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                if (phase.name.equals(phaseName)) {
+                    return phase;
+                }
+            }
+        }
+        return null;
+    }
+
+    public void addRun(long bytes) {
+        runSizes.add(bytes);
+    }
+
+    public ExecutorService newSortExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        sortExecutor = executor;
+        return executor;
+    }
+
+    public void sortTaskSubmitted() {
+        maxSortQueueDepth.accumulateAndGet(getSortQueueDepth(), Math::max);
+    }
+
+    public void sortTaskCompleted(long millis) {
+        sortTaskLatency.record(millis);
+    }
+
+    public synchronized void mergeFanIn(int runs) {
+        mergeFanIn = Math.max(mergeFanIn, runs);
+    }
+
+    public long totalMillis() {
+        return (endMillis > 0 ? endMillis : System.currentTimeMillis()) - startMillis;
+    }
+
+    // time spent in garbage collections during the sort
+    public long gcMillis() {
+        return (gcMillisAtEnd >= 0 ? gcMillisAtEnd : collectorMillis()) - gcMillisAtStart;
+    }
+
+    private static long collectorMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    public long peakHeapBytes() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peakHeap;
+    }
+
+    public void printSummary(PrintStream log) {
+        char label = 'a';
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                log.println(String.format(Locale.ROOT, "%c) %s: %d ms, %d rows, %.0f rows/sec, %.1f MB/sec",
+                        label++, phase.name, phase.millis(), phase.rows.sum(), phase.rowsPerSecond(),
+                        phase.bytesPerSecond() / (1024 * 1024)));
+            }
+        }
+        log.println("Total time: " + totalMillis() + " ms");
+        log.println("GC time: " + gcMillis() + " ms");
+        if (filter != null) {
+            log.println(String.format(Locale.ROOT, "Filter %s: kept %d of %d rows (selectivity %.4f)", filter,
+                    filterRowsKept.sum(), filterRowsRead.sum(), getFilterSelectivity()));
+        }
+        if (mergeStretches > 1 || runsCopied.sum() > 0) {
+            log.println("Disjoint runs: " + mergeStretches + " stretches in the last merges, " + runsCopied.sum()
+                    + " runs copied without merging (" + bytesCopied.sum() + " bytes)");
+        }
+        if (dictionaryColumns > 0) {
+            log.println("Dictionary fallbacks: " + dictionaryFallbacks.sum() + " of " + comparisons.sum()
+                    + " comparisons");
+        }
+    }
+
+    // runs of a merge copied as they are
+    public void copied(long runs, long bytes) {
+        runsCopied.add(runs);
+        bytesCopied.add(bytes);
+    }
+
+    // rows read by a filter of the input
+    public void filtered(RowFilter where, long rowsRejected, long rowsKept) {
+        if (where == null) {
+            return;
+        }
+        filter = where.toString();
+        filterRowsRead.add(rowsRejected + rowsKept);
+        filterRowsKept.add(rowsKept);
+    }
+
+    // kept rows per row read, 1 without a filter
+    @Override
+    public double getFilterSelectivity() {
+        long read = filterRowsRead.sum();
+        return read == 0 ? 1 : (double) filterRowsKept.sum() / read;
+    }
+
+    public void writeReport(File file) {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(getReportJson());
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot write metrics report " + file.getPath());
+        }
+    }
+
+    @Override
+    public String getReportJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"name\": \"").append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+        sb.append("  \"total_ms\": ").append(totalMillis()).append(",\n");
+        sb.append("  \"phases\": [\n");
+        synchronized (phases) {
+            for (int i = 0; i < phases.size(); i++) {
+                Phase phase = phases.get(i);
+                sb.append(String.format(Locale.ROOT,
+                        "    {\"name\": \"%s\", \"ms\": %d, \"rows\": %d, \"bytes_read\": %d, \"bytes_written\": %d, "
+                                + "\"rows_per_sec\": %.1f, \"bytes_per_sec\": %.1f}%s\n",
+                        phase.name, phase.millis(), phase.rows.sum(), phase.bytesRead.sum(), phase.bytesWritten.sum(),
+                        phase.rowsPerSecond(), phase.bytesPerSecond(), i < phases.size() - 1 ? "," : ""));
+            }
+        }
+        sb.append("  ],\n");
+        sb.append("  \"spill_bytes\": ").append(spillBytes.sum()).append(",\n");
+        List<Long> runs;
+        synchronized (runSizes) {
+            runs = new ArrayList<>(runSizes);
+        }
+        long runMin = runs.isEmpty() ? 0 : Collections.min(runs);
+        long runMax = runs.isEmpty() ? 0 : Collections.max(runs);
+        long runTotal = 0;
+        for (long run : runs) {
+            runTotal += run;
+        }
+        sb.append(String.format(Locale.ROOT, "  \"runs\": {\"count\": %d, \"total_bytes\": %d, \"min_bytes\": %d, "
+                + "\"max_bytes\": %d, \"mean_bytes\": %d},\n", runs.size(), runTotal, runMin, runMax,
+                runs.isEmpty() ? 0 : runTotal / runs.size()));
+        sb.append("  \"merge_fan_in\": ").append(mergeFanIn).append(",\n");
+        sb.append("  \"disjoint_runs\": {\"stretches\": ").append(mergeStretches).append(", \"runs_copied\": ")
+                .append(runsCopied.sum()).append(", \"bytes_copied\": ").append(bytesCopied.sum()).append("},\n");
+        sb.append("  \"comparisons\": ").append(comparisons.sum()).append(",\n");
+        sb.append("  \"in_memory_sort_ms\": ").append(inMemorySortNanos.sum() / 1000000).append(",\n");
+        if (filter != null) {
+            sb.append(String.format(Locale.ROOT, "  \"filter\": {\"where\": \"%s\", \"rows_read\": %d, "
+                            + "\"rows_kept\": %d, \"selectivity\": %.6f},\n",
+                    filter.replace("\\", "\\\\").replace("\"", "\\\""), filterRowsRead.sum(), filterRowsKept.sum(),
+                    getFilterSelectivity()));
+        }
+        sb.append("  \"dictionary\": {\"columns\": ").append(dictionaryColumns).append(", \"fallbacks\": ")
+                .append(dictionaryFallbacks.sum()).append("},\n");
+        sb.append("  \"sort_queue\": {\"max_depth\": ").append(maxSortQueueDepth.get()).append("},\n");
+        sb.append("  \"sort_task_latency_ms\": ").append(sortTaskLatency.toJson()).append(",\n");
+        sb.append("  \"gc_ms\": ").append(gcMillis()).append(",\n");
+        sb.append("  \"off_heap_peak_bytes\": ").append(offHeapPeakBytes).append(",\n");
+        sb.append("  \"peak_heap_bytes\": ").append(peakHeapBytes()).append("\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    @Override
+    public String getCurrentPhase() {
+        Phase phase = currentPhase;
+        return phase == null ? "" : phase.name;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return totalMillis();
+    }
+
+    @Override
+    public long getPhaseRows() {
+        Phase phase = currentPhase;
+        return phase == null ? 0 : phase.rows.sum();
+    }
+
+    @Override
+    public double getPhaseRowsPerSecond() {
+        Phase phase = currentPhase;
+        return phase == null ? 0 : phase.rowsPerSecond();
+    }
+
+    @Override
+    public double getPhaseBytesPerSecond() {
+        Phase phase = currentPhase;
+        return phase == null ? 0 : phase.bytesPerSecond();
+    }
+
+    @Override
+    public long getSpillBytes() {
+        return spillBytes.sum();
+    }
+
+    @Override
+    public int getRunCount() {
+        return runSizes.size();
+    }
+
+    @Override
+    public int getMergeFanIn() {
+        return mergeFanIn;
+    }
+
+    @Override
+    public long getRunsCopied() {
+        return runsCopied.sum();
+    }
+
+    @Override
+    public long getComparisons() {
+        return comparisons.sum();
+    }
+
+    @Override
+    public int getSortQueueDepth() {
+        ThreadPoolExecutor executor = sortExecutor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    @Override
+    public int getMaxSortQueueDepth() {
+        return maxSortQueueDepth.get();
+    }
+
+    @Override
+    public long getSortTaskCount() {
+        return sortTaskLatency.count.sum();
+    }
+
+    @Override
+    public double getSortTaskMeanMillis() {
+        return sortTaskLatency.mean();
+    }
+
+    @Override
+    public long getSortTaskMaxMillis() {
+        return sortTaskLatency.max.get();
+    }
+
+    static class Phase {
+        String name;
+        long startMillis;
+        volatile long endMillis;
+        LongAdder rows = new LongAdder();
+        LongAdder bytesRead = new LongAdder();
+        LongAdder bytesWritten = new LongAdder();
+
+        Phase(String name) {
+            this.name = name;
+            this.startMillis = System.currentTimeMillis();
+        }
+
+        void end() {
+            endMillis = System.currentTimeMillis();
+        }
+
+        long millis() {
+            return (endMillis > 0 ? endMillis : System.currentTimeMillis()) - startMillis;
+        }
+
+        double rowsPerSecond() {
+            return rows.sum() * 1000.0 / Math.max(1, millis());
+        }
+
+        double bytesPerSecond() {
+            return Math.max(bytesRead.sum(), bytesWritten.sum()) * 1000.0 / Math.max(1, millis());
+        }
+    }
+
+    // power of two buckets, bucket i holds values in [2^(i-1), 2^i)
+    static class Histogram {
+        AtomicLongArray buckets = new AtomicLongArray(64);
+        LongAdder count = new LongAdder();
+        LongAdder sum = new LongAdder();
+        AtomicLong max = new AtomicLong();
+        AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+
+        void record(long value) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+            min.accumulateAndGet(value, Math::min);
+        }
+
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        // upper bound of the bucket holding the given percentile
+        long percentile(double percentile) {
+            long n = count.sum();
+            long rank = (long) Math.ceil(n * percentile);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+
+        String toJson() {
+            long n = count.sum();
+            return String.format(Locale.ROOT, "{\"count\": %d, \"min\": %d, \"max\": %d, \"mean\": %.1f, \"p50\": %d, "
+                            + "\"p90\": %d, \"p99\": %d}", n, n == 0 ? 0 : min.get(), max.get(), mean(),
+                    percentile(0.5), percentile(0.9), percentile(0.99));
+        }
+    }
+}
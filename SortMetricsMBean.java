@@ -0,0 +1,36 @@
+// Live view of a running sort, registered as sortlargefile:type=SortMetrics,name=<file name>
+public interface SortMetricsMBean {
+    String getCurrentPhase();
+
+    long getElapsedMillis();
+
+    long getPhaseRows();
+
+    double getPhaseRowsPerSecond();
+
+    double getPhaseBytesPerSecond();
+
+    long getSpillBytes();
+
+    int getRunCount();
+
+    int getMergeFanIn();
+
+    long getRunsCopied();
+
+    long getComparisons();
+
+    double getFilterSelectivity();
+
+    int getSortQueueDepth();
+
+    int getMaxSortQueueDepth();
+
+    long getSortTaskCount();
+
+    double getSortTaskMeanMillis();
+
+    long getSortTaskMaxMillis();
+
+    String getReportJson();
+}
@@ -0,0 +1,347 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+    Chooses how to run a sort instead of guessing -n:
+
+    a) run size: a sorter keeps a whole run in memory as String[] rows, roughly MEMORY_EXPANSION times
+       the bytes on disk, and every sorter thread holds one run, so runs are sized to fit the heap.
+    b) sorter threads: the cores, fewer if the heap cannot hold that many runs of a useful size.
+    c) buffer size: about 10 ms of sequential transfer at the probed disk throughput, so seeks between
+       merge inputs are amortized.
+    d) merge fan-in: as many runs as there is heap for their read buffers, capped at MAX_FAN_IN.
+
+    Off-heap runs (limits.offHeap) are sized by the off-heap memory instead: the bytes of a run plus 32 bytes
+    of entries per row, OFF_HEAP_EXPANSION times the run, with OFF_HEAP_BLOCKS_FRACTION kept for the merge
+    read blocks, which also caps the fan-in.
+
+    An input whose rows all fit in the heap at once is sorted in memory: its ranges are loaded and sorted by
+    the sorter threads and merged from memory, without run files (unless limits.external, or a number of
+    files is given: those are run files).
+
+    The heap used is the memory budget of the limits if given. Every choice can be overridden by the limits.
+    When the input size is unknown (stdin) the number of files is not planned: the input is cut into runs of
+    the run size as it is read. After a sort the observed phase throughputs and the disk throughput of the
+    plan are appended to the history file; later plans use them to estimate phase times, to prefer the runs
+    per GB that finished fastest on inputs of a similar size and to skip the disk probe.
+ */
+public class SortPlanner {
+    static double MEMORY_EXPANSION = 5.0;
+    static double USABLE_HEAP_FRACTION = 0.6;
+    static double OFF_HEAP_EXPANSION = 1.5;
+    static double OFF_HEAP_BLOCKS_FRACTION = 0.25;
+    static long MIN_RUN_BYTES = 1024 * 1024;
+    static int MAX_FAN_IN = 128;
+    static int MIN_FAN_IN = 16;
+    static int MIN_BUFFER_BYTES = 64 * 1024;
+    static int MAX_BUFFER_BYTES = 8 * 1024 * 1024;
+    static long PROBE_BYTES = 32 * 1024 * 1024;
+    static File HISTORY_FILE = new File(System.getProperty("user.home"), ".sortlargefile-history.csv");
+
+    File workDir;
+    SortLimits limits;
+    PrintStream log;
+    long fileSizeBytes;
+    long maxHeapBytes;
+    int cores;
+
+    public SortPlanner(InputSource input, File workDir, SortLimits limits, PrintStream log) {
+        this.workDir = workDir;
+        this.limits = limits;
+        this.log = log;
+        this.fileSizeBytes = input.sizeBytes;
+        this.maxHeapBytes = Runtime.getRuntime().maxMemory();
+        this.cores = Runtime.getRuntime().availableProcessors();
+    }
+
+    public Plan plan() {
+        Plan plan = new Plan();
+        List<History> history = limits.useHistory ? readHistory() : new ArrayList<>();
+        History similar = bestSimilarRun(history);
+
+        long usableHeap = limits.memoryBudgetBytes > 0 ? limits.memoryBudgetBytes
+                : (long) (maxHeapBytes * USABLE_HEAP_FRACTION);
+        long maxRunBytesPerSorter = (long) (usableHeap / MEMORY_EXPANSION);
+        if (limits.offHeap) {
+            plan.offHeapBytes = limits.offHeapBytes > 0 ? limits.offHeapBytes
+                    : (long) (OffHeapArena.maxDirectMemory() * USABLE_HEAP_FRACTION);
+            maxRunBytesPerSorter = Math.min(OffHeapArena.MAX_RUN_BYTES,
+                    (long) (plan.offHeapBytes * (1 - OFF_HEAP_BLOCKS_FRACTION) / OFF_HEAP_EXPANSION));
+        }
+
+        plan.inMemory = !limits.external && !limits.offHeap && limits.splitIntoNumFiles == null && fileSizeBytes >= 0
+                && fileSizeBytes * MEMORY_EXPANSION <= usableHeap;
+
+        if (limits.numFileSorters != null) {
+            plan.numFileSorters = limits.numFileSorters;
+        } else {
+            // never run so many sorters that each one only gets a tiny run
+            plan.numFileSorters = (int) Math.max(1, Math.min(cores, maxRunBytesPerSorter / MIN_RUN_BYTES));
+        }
+
+        if (fileSizeBytes < 0) {
+            if (limits.splitIntoNumFiles != null) {
+                log.println("WARN: input size unknown, number of files to split ignored");
+            }
+            plan.runBytes = Math.max(MIN_RUN_BYTES, maxRunBytesPerSorter / plan.numFileSorters);
+        } else if (limits.splitIntoNumFiles != null) {
+            plan.splitIntoNumFiles = limits.splitIntoNumFiles;
+        } else {
+            long runBytes = Math.max(MIN_RUN_BYTES, maxRunBytesPerSorter / plan.numFileSorters);
+            int minFiles = (int) Math.max(1, (fileSizeBytes + runBytes - 1) / runBytes);
+            // at least one run per sorter so all threads have work
+            plan.splitIntoNumFiles = Math.max(minFiles,
+                    (int) Math.min(plan.numFileSorters, Math.max(1, fileSizeBytes / MIN_RUN_BYTES)));
+            if (similar != null) {
+                int fromHistory = (int) Math.ceil(similar.runsPerGb() * fileSizeBytes / (1024.0 * 1024 * 1024));
+                if (fromHistory > plan.splitIntoNumFiles) {
+                    plan.splitIntoNumFiles = fromHistory;
+                    plan.fromHistory = true;
+                }
+            }
+        }
+        if (fileSizeBytes >= 0) {
+            plan.runBytes = fileSizeBytes / Math.max(1, plan.splitIntoNumFiles);
+        }
+
+        if (similar != null && similar.diskBytesPerSec > 0) {
+            plan.diskBytesPerSec = similar.diskBytesPerSec;
+        } else if (limits.probeDisk) {
+            plan.diskBytesPerSec = probeDisk();
+        }
+
+        if (limits.bufferSizeBytes != null) {
+            plan.bufferSizeBytes = limits.bufferSizeBytes;
+        } else if (plan.diskBytesPerSec > 0) {
+            long tenMillis = (long) (plan.diskBytesPerSec / 100);
+            // leave heap to merge at least MIN_FAN_IN runs at once
+            long heapCap = usableHeap / 2 / (3L * MIN_FAN_IN);
+            plan.bufferSizeBytes = (int) Math.max(MIN_BUFFER_BYTES, Math.min(Math.min(MAX_BUFFER_BYTES, heapCap), tenMillis));
+        } else {
+            plan.bufferSizeBytes = 1024 * 1024;
+        }
+
+        if (limits.mergeFanIn != null) {
+            plan.mergeFanIn = Math.max(2, limits.mergeFanIn);
+        } else {
+            // a reader holds its buffer and decoded chars (2 bytes per char)
+            long perReader = 3L * plan.bufferSizeBytes;
+            plan.mergeFanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, usableHeap / 2 / perReader));
+            if (limits.offHeap) {
+                long blocks = (long) (plan.offHeapBytes * OFF_HEAP_BLOCKS_FRACTION / plan.bufferSizeBytes);
+                plan.mergeFanIn = (int) Math.max(2, Math.min(plan.mergeFanIn, blocks));
+            }
+        }
+
+        if (!history.isEmpty()) {
+            plan.estimate(history);
+        }
+        return plan;
+    }
+
+    // sequential write then read of a temp file in the work dir, in bytes/sec
+    double probeDisk() {
+        File dir = workDir.getAbsoluteFile();
+        long probeBytes = fileSizeBytes < 0 ? PROBE_BYTES : Math.max(MIN_RUN_BYTES, Math.min(PROBE_BYTES, fileSizeBytes));
+        byte[] block = new byte[MIN_BUFFER_BYTES * 16];
+        File probe = null;
+        try {
+            probe = File.createTempFile("sortlargefile-probe", ".tmp", dir);
+            long start = System.nanoTime();
+            try (FileOutputStream out = new FileOutputStream(probe)) {
+                for (long written = 0; written < probeBytes; written += block.length) {
+                    out.write(block);
+                }
+                out.getFD().sync();
+            }
+            try (FileInputStream in = new FileInputStream(probe)) {
+                while (in.read(block) > 0) {
+                    // read back only, the page cache makes this optimistic
+                }
+            }
+            long nanos = Math.max(1, System.nanoTime() - start);
+            return 2.0 * probeBytes * 1_000_000_000L / nanos;
+        } catch (IOException e) {
+            log.println("WARN: disk probe failed: " + e.getMessage());
+            return 0;
+        } finally {
+            if (probe != null) {
+                probe.delete();
+            }
+        }
+    }
+
+    History bestSimilarRun(List<History> history) {
+        History best = null;
+        if (fileSizeBytes < 0) {
+            return null;
+        }
+        for (History run : history) {
+            boolean similarSize = run.fileSizeBytes >= fileSizeBytes / 2 && run.fileSizeBytes <= fileSizeBytes * 2;
+            if (similarSize && (best == null || run.bytesPerSec() > best.bytesPerSec())) {
+                best = run;
+            }
+        }
+        return best;
+    }
+
+    // the input size and the number of files are the observed ones, stdin has no size up front
+    public static void recordRun(SortMetrics metrics, Plan plan, PrintStream log) {
+        SortMetrics.Phase split = metrics.phase(SortMetrics.SPLIT);
+        SortMetrics.Phase sort = metrics.phase(SortMetrics.SORT);
+        SortMetrics.Phase merge = metrics.phase(SortMetrics.MERGE);
+        if (split == null || sort == null || merge == null) {
+            return;
+        }
+        // files are not split any more, their sorters read the input
+        long inputBytes = split.bytesRead.sum() > 0 ? split.bytesRead.sum() : sort.bytesRead.sum();
+        // the disk throughput is the probed one (or the one of the run it came from), 0 if not probed
+        String line = String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%d,%d,%.0f,%.0f,%.0f,%.0f",
+                inputBytes, metrics.getRunCount(), plan.numFileSorters, plan.mergeFanIn, split.millis(),
+                sort.millis(), merge.millis(), split.bytesPerSecond(), sort.bytesPerSecond(), merge.bytesPerSecond(),
+                plan.diskBytesPerSec);
+        try (FileWriter writer = new FileWriter(HISTORY_FILE, true)) {
+            writer.write(line + "\n");
+        } catch (IOException e) {
+            log.println("WARN: cannot write run history " + HISTORY_FILE.getPath() + ": " + e.getMessage());
+        }
+    }
+
+    List<History> readHistory() {
+        List<History> history = new ArrayList<>();
+        if (!HISTORY_FILE.exists()) {
+            return history;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(HISTORY_FILE))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(",", -1);
+                if (values.length < 10) {
+                    continue;
+                }
+                try {
+                    History run = new History();
+                    run.fileSizeBytes = Long.parseLong(values[0]);
+                    run.splitIntoNumFiles = Integer.parseInt(values[1]);
+                    run.splitMs = Long.parseLong(values[4]);
+                    run.sortMs = Long.parseLong(values[5]);
+                    run.mergeMs = Long.parseLong(values[6]);
+                    run.splitBytesPerSec = Double.parseDouble(values[7]);
+                    run.sortBytesPerSec = Double.parseDouble(values[8]);
+                    run.mergeBytesPerSec = Double.parseDouble(values[9]);
+                    // lines written before the disk throughput was recorded have none
+                    run.diskBytesPerSec = values.length > 10 ? Double.parseDouble(values[10]) : 0;
+                    history.add(run);
+                } catch (NumberFormatException e) {
+                    // skip lines written by other versions
+                }
+            }
+        } catch (IOException e) {
+            log.println("WARN: cannot read run history " + HISTORY_FILE.getPath() + ": " + e.getMessage());
+        }
+        return history;
+    }
+
+    class Plan {
+        int splitIntoNumFiles;
+        long runBytes;
+        int numFileSorters;
+        int mergeFanIn;
+        int bufferSizeBytes;
+        double diskBytesPerSec;
+        long offHeapBytes;
+        // no run files, the sorted ranges stay in the heap
+        boolean inMemory;
+        boolean fromHistory;
+        long estimatedSplitMs = -1;
+        long estimatedSortMs = -1;
+        long estimatedMergeMs = -1;
+
+        void estimate(List<History> history) {
+            if (fileSizeBytes < 0) {
+                return;
+            }
+            double split = 0;
+            double sort = 0;
+            double merge = 0;
+            for (History run : history) {
+                split += run.splitBytesPerSec;
+                sort += run.sortBytesPerSec;
+                merge += run.mergeBytesPerSec;
+            }
+            int n = history.size();
+            if (sort > 0 && merge > 0) {
+                estimatedSplitMs = split > 0 ? (long) (fileSizeBytes * 1000.0 / (split / n)) : 0;
+                estimatedSortMs = (long) (fileSizeBytes * 1000.0 / (sort / n));
+                estimatedMergeMs = (long) (fileSizeBytes * 1000.0 / (merge / n));
+            }
+        }
+
+        int mergePasses() {
+            if (fileSizeBytes < 0) {
+                return 1;
+            }
+            int passes = 1;
+            for (long runs = splitIntoNumFiles; runs > mergeFanIn; runs = (runs + mergeFanIn - 1) / mergeFanIn) {
+                passes++;
+            }
+            return passes;
+        }
+
+        public void print(PrintStream log) {
+            if (fileSizeBytes < 0) {
+                log.println(String.format(Locale.ROOT, "Plan: files of ~%d bytes (input size unknown), %d sorter threads%s",
+                        runBytes, numFileSorters, tag(limits.numFileSorters != null, false)));
+            } else {
+                log.println(String.format(Locale.ROOT, "Plan: %d files of ~%d bytes%s, %d sorter threads%s",
+                        splitIntoNumFiles, runBytes, tag(limits.splitIntoNumFiles != null, fromHistory), numFileSorters,
+                        tag(limits.numFileSorters != null, false)));
+            }
+            if (inMemory) {
+                log.println(String.format(Locale.ROOT, "      in memory, no run files, buffer %d bytes%s",
+                        bufferSizeBytes, tag(limits.bufferSizeBytes != null, false)));
+            } else {
+                log.println(String.format(Locale.ROOT, "      merge fan-in %d%s (%d pass%s), buffer %d bytes%s",
+                        mergeFanIn, tag(limits.mergeFanIn != null, false), mergePasses(), mergePasses() > 1 ? "es" : "",
+                        bufferSizeBytes, tag(limits.bufferSizeBytes != null, false)));
+            }
+            log.println(String.format(Locale.ROOT, "      heap %d bytes, %d cores, disk %.1f MB/sec, %s scanner",
+                    maxHeapBytes, cores, diskBytesPerSec / (1024 * 1024), ByteScanner.get().name()));
+            if (offHeapBytes > 0) {
+                log.println(String.format(Locale.ROOT, "      off-heap runs, %d bytes%s", offHeapBytes,
+                        tag(limits.offHeapBytes > 0, false)));
+            }
+            if (estimatedSplitMs >= 0) {
+                log.println(String.format(Locale.ROOT,
+                        "      estimated from history: split %d ms, sort %d ms, merge %d ms",
+                        estimatedSplitMs, estimatedSortMs, estimatedMergeMs));
+            }
+        }
+
+        private String tag(boolean override, boolean history) {
+            return override ? " (override)" : history ? " (history)" : "";
+        }
+    }
+
+    static class History {
+        long fileSizeBytes;
+        int splitIntoNumFiles;
+        long splitMs;
+        long sortMs;
+        long mergeMs;
+        double splitBytesPerSec;
+        double sortBytesPerSec;
+        double mergeBytesPerSec;
+        double diskBytesPerSec;
+
+        double runsPerGb() {
+            return splitIntoNumFiles * (1024.0 * 1024 * 1024) / Math.max(1, fileSizeBytes);
+        }
+
+        double bytesPerSec() {
+            return fileSizeBytes * 1000.0 / Math.max(1, splitMs + sortMs + mergeMs);
+        }
+    }
+}
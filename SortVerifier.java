@@ -0,0 +1,360 @@
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/*
+    Checks that a file is sorted by a key spec, without sorting it:
+
+    a) Cut the file at newlines into ranges of at most RANGE_BYTES, at least one per thread.
+    b) Every range is memory-mapped and checked on its own thread: its lines are found and copied straight out
+       of the mapping, decoded as UTF-8 like the sorter does, and every row is checked against the one before.
+       Each range keeps its first and last row, so once all are done every boundary is checked too.
+    c) Report the rows, a checksum and the first row out of order, if any, with its row number and byte offset.
+
+    The checksum is the sum of the CRC32 of every row (without its newline), so it does not depend on the order
+    of the rows: the same for a file and its sorted version, which shows nothing was lost or changed.
+
+    Without -c only the rows and the checksum are computed. Gzip files are read on one thread, block gzip
+    inflated in parallel. Columnar files (ColumnarWriter) are checked a block at a time, with every row's
+    checksum that of its csv line.
+
+    $ sortlargefile-verify -f sorted-file.csv -c 1 4 5
+ */
+public class SortVerifier {
+    static long RANGE_BYTES = 1024L * 1024 * 1024;
+    static int BUFFER_BYTES = 1024 * 1024;
+
+    // null to count and checksum only
+    KeySpec keySpec;
+    int threads;
+    boolean hasHeader;
+    PrintStream log = System.out;
+
+    public SortVerifier(KeySpec keySpec, int threads) {
+        this.keySpec = keySpec;
+        this.threads = Math.max(1, threads);
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("f")
+                .longOpt("file-name")
+                .desc("File to verify, gzip or not")
+                .hasArg()
+                .argName("FILE-NAME")
+                .required(true)
+                .build());
+        options.addOption(Option.builder("c")
+                .longOpt("columns-to-sort")
+                .desc("Columns it is sorted by, as given to the sort (default none, only rows and checksum)")
+                .hasArgs()
+                .argName("COLUMNS-TO-SORT-BY")
+                .build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .desc("Number of ranges checked concurrently (default the cores)")
+                .hasArg()
+                .argName("THREADS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("header")
+                .desc("The first line is a header, not a row (sorted outputs have none)")
+                .build());
+        CommandLine cmd = SortCommand.parse(options, args, "sortlargefile-verify");
+        if (cmd == null) {
+            return;
+        }
+
+        SortVerifier verifier = new SortVerifier(cmd.hasOption("c") ? KeySpec.parse(cmd.getOptionValues("c")) : null,
+                cmd.hasOption("t") ? Integer.parseInt(cmd.getOptionValue("t"))
+                        : Runtime.getRuntime().availableProcessors());
+        verifier.hasHeader = cmd.hasOption("header");
+        Result result = verifier.verify(new File(cmd.getOptionValue("f")));
+        // not sorted is a result, printed above, not an error: only the exit status tells
+        if (!result.isSorted()) {
+            System.exit(1);
+        }
+    }
+
+    // checks the file and prints the result
+    public Result verify(File file) {
+        long start = System.currentTimeMillis();
+        Result result;
+        try {
+            if (ColumnarReader.isColumnar(file)) {
+                result = verifyBlocks(file);
+            } else {
+                result = InputSource.file(file.getPath()).gzipFiles.isEmpty() ? verifyRanges(file) : verifyStream(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot verify " + file.getPath());
+        }
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        log.println(String.format(Locale.ROOT, "Verified %s: %d rows, checksum %016x, %d ms, %.1f MB/sec",
+                file.getPath(), result.rows, result.checksum, millis, file.length() * 1000.0 / millis / (1024 * 1024)));
+        if (keySpec == null) {
+            return result;
+        }
+        if (result.isSorted()) {
+            log.println("Sorted by " + keySpec);
+        } else {
+            log.println("NOT sorted by " + keySpec + ": row " + (result.violationRow + 1) + " at byte "
+                    + result.violationOffset + " comes after a bigger key");
+            log.println("  row " + result.violationRow + ": " + String.join(ExternalSorter.CSV_SPLIT_BY, result.before));
+            log.println("  row " + (result.violationRow + 1) + ": "
+                    + String.join(ExternalSorter.CSV_SPLIT_BY, result.after));
+        }
+        return result;
+    }
+
+    private Result verifyRanges(File file) throws IOException {
+        List<Long> starts = starts(file);
+        List<Callable<Range>> checks = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            long rangeStart = starts.get(i);
+            long rangeEnd = i + 1 < starts.size() ? starts.get(i + 1) : file.length();
+            boolean skipHeader = hasHeader && i == 0;
+            checks.add(() -> checkMapped(file, rangeStart, rangeEnd, skipHeader));
+        }
+        return combine(run(checks, file));
+    }
+
+    // every block of a columnar file on its own, offsets are those of the blocks
+    private Result verifyBlocks(File file) throws IOException {
+        try (ColumnarReader reader = new ColumnarReader(file)) {
+            List<Callable<Range>> checks = new ArrayList<>();
+            for (ColumnarReader.Block block : reader.blocks) {
+                checks.add(() -> {
+                    RangeCheck check = new RangeCheck();
+                    for (String[] row : reader.read(block, null)) {
+                        byte[] line = String.join(ExternalSorter.CSV_SPLIT_BY, row).getBytes(ExternalSorter.CHARSET);
+                        check.row(row, line, 0, line.length, block.offset);
+                    }
+                    return check.range;
+                });
+            }
+            return combine(run(checks, file));
+        }
+    }
+
+    // the checks on threads, their ranges in order
+    private List<Range> run(List<Callable<Range>> checks, File file) {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        List<Range> ranges = new ArrayList<>();
+        try {
+            List<Future<Range>> futures = new ArrayList<>();
+            for (Callable<Range> check : checks) {
+                futures.add(executorService.submit(check));
+            }
+            for (Future<Range> future : futures) {
+                ranges.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error verifying " + file.getPath(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted verifying " + file.getPath());
+        } finally {
+            executorService.shutdownNow();
+        }
+        return ranges;
+    }
+
+    private Result verifyStream(File file) throws IOException {
+        try (InputStream in = BlockGzipInputStream.open(new FileInputStream(file), threads)) {
+            RangeLineReader reader = new RangeLineReader(in, BUFFER_BYTES);
+            if (hasHeader) {
+                reader.readLineInto();
+            }
+            return combine(List.of(check(reader, 0)));
+        }
+    }
+
+    // range starts: at most RANGE_BYTES apart, each just after a newline
+    private List<Long> starts(File file) throws IOException {
+        long size = file.length();
+        int numRanges = (int) Math.max(threads, (size + RANGE_BYTES - 1) / RANGE_BYTES);
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (int i = 1; i < numRanges; i++) {
+                long position = Math.max(Math.max(1, size * i / numRanges), starts.get(starts.size() - 1));
+                long start = -1;
+                // the line that starts before position belongs to the range before
+                for (long at = position - 1; start < 0 && at < size; at += buffer.limit()) {
+                    buffer.clear();
+                    if (channel.read(buffer, at) <= 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    for (int b = 0; b < buffer.limit(); b++) {
+                        if (buffer.get(b) == '\n') {
+                            start = at + b + 1;
+                            break;
+                        }
+                    }
+                }
+                if (start < 0 || start >= size) {
+                    break;
+                }
+                if (start > starts.get(starts.size() - 1)) {
+                    starts.add(start);
+                }
+            }
+        }
+        return starts;
+    }
+
+    // the mapped range is copied out a window at a time with bulk gets, its lines found with the ByteScanner and
+    // split as RangeLineReader splits them
+    private Range checkMapped(File file, long start, long end, boolean skipHeader) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            RangeCheck check = new RangeCheck();
+            ByteScanner scanner = ByteScanner.get();
+            ByteScanner.Positions commas = new ByteScanner.Positions();
+            byte[] window = new byte[BUFFER_BYTES];
+            // window[0, kept) is the start of a line, at lineStart in the range
+            int kept = 0;
+            int lineStart = 0;
+            boolean header = skipHeader;
+            while (mapped.hasRemaining() || kept > 0) {
+                if (kept == window.length) {
+                    window = Arrays.copyOf(window, window.length * 2);
+                }
+                int filled = kept + Math.min(window.length - kept, mapped.remaining());
+                mapped.get(window, kept, filled - kept);
+                int from = 0;
+                int newline;
+                while ((newline = scanner.indexOf(window, from, filled, (byte) '\n')) >= 0
+                        || (!mapped.hasRemaining() && from < filled)) {
+                    int to = newline >= 0 ? newline : filled;
+                    int length = to > from && window[to - 1] == '\r' ? to - from - 1 : to - from;
+                    if (!header) {
+                        check.row(check.comparator != null
+                                        ? scanner.split(window, from, from + length, ExternalSorter.CHARSET, commas) : null,
+                                window, from, length, start + lineStart);
+                    }
+                    header = false;
+                    lineStart += to + 1 - from;
+                    from = to + 1;
+                }
+                kept = Math.max(0, filled - from);
+                if (kept > 0) {
+                    System.arraycopy(window, from, window, 0, kept);
+                }
+            }
+            return check.range;
+        }
+    }
+
+    // every row against the one before, from the byte offset of the range
+    private Range check(RangeLineReader reader, long offset) throws IOException {
+        RangeCheck check = new RangeCheck();
+        long lineOffset = offset + reader.bytesRead;
+        int length;
+        while ((length = reader.readLineInto()) >= 0) {
+            check.row(check.comparator != null ? reader.split(length) : null, reader.line, 0, length, lineOffset);
+            lineOffset = offset + reader.bytesRead;
+        }
+        return check.range;
+    }
+
+    // the rows of one range, one after the other
+    private class RangeCheck {
+        Range range = new Range();
+        ColumnsComparator comparator = keySpec != null ? keySpec.comparator(new LongAdder()) : null;
+        boolean collated = comparator != null && comparator.isCollated();
+        CRC32 crc = new CRC32();
+        byte[] previousKey;
+
+        // row is null without a key spec, line[from, from + length) is its csv line
+        void row(String[] row, byte[] line, int from, int length, long offset) {
+            crc.reset();
+            crc.update(line, from, length);
+            range.checksum += crc.getValue();
+            if (comparator != null) {
+                byte[] key = collated ? comparator.sortKey(row) : null;
+                if (range.last != null && range.violationRow < 0 && (collated
+                        ? comparator.compareKeys(previousKey, key) > 0 : comparator.compare(range.last, row) > 0)) {
+                    range.violationRow = range.rows;
+                    range.violationOffset = offset;
+                    range.before = range.last;
+                    range.after = row;
+                }
+                if (range.first == null) {
+                    range.first = row;
+                    range.firstOffset = offset;
+                }
+                range.last = row;
+                previousKey = key;
+            }
+            range.rows++;
+        }
+    }
+
+    // the ranges in file order into one result, checking their boundaries
+    private Result combine(List<Range> ranges) {
+        Result result = new Result();
+        ColumnsComparator comparator = keySpec != null ? keySpec.comparator(new LongAdder()) : null;
+        String[] last = null;
+        long rowsBefore = 0;
+        for (Range range : ranges) {
+            result.checksum += range.checksum;
+            if (result.violationRow < 0 && last != null && range.first != null
+                    && comparator.compare(last, range.first) > 0) {
+                result.violationRow = rowsBefore;
+                result.violationOffset = range.firstOffset;
+                result.before = last;
+                result.after = range.first;
+            }
+            if (result.violationRow < 0 && range.violationRow >= 0) {
+                result.violationRow = rowsBefore + range.violationRow;
+                result.violationOffset = range.violationOffset;
+                result.before = range.before;
+                result.after = range.after;
+            }
+            if (range.last != null) {
+                last = range.last;
+            }
+            rowsBefore += range.rows;
+        }
+        result.rows = rowsBefore;
+        return result;
+    }
+
+    public static class Result {
+        long rows;
+        long checksum;
+        // the first row out of order (counted from 0, without a header) and its byte offset, -1 if sorted
+        long violationRow = -1;
+        long violationOffset;
+        String[] before;
+        String[] after;
+
+        public boolean isSorted() {
+            return violationRow < 0;
+        }
+    }
+
+    private static class Range extends Result {
+        String[] first;
+        String[] last;
+        // of the first row, for a violation at the boundary with the range before
+        long firstOffset;
+    }
+}
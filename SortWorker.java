@@ -0,0 +1,153 @@
+import org.apache.commons.cli.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/*
+    Sorts the partitions a SortCoordinator streams to it over TCP, one connection at a time, with an
+    ExternalSorter planned for this JVM (its heap, cores and work dir). On every connection:
+
+    a) a header line: SORT <tab> <partition> <tab> <key columns> <tab> <output path, or - for the socket>
+    b) the rows of the partition, without a header line, until the coordinator shuts down its side
+    c) the sorted rows back on the socket, or the line DONE <tab> <rows> once they are in the output path,
+       a path of the worker's host.
+
+    The coordinator starts workers on localhost itself; on other hosts they are started by hand with the same
+    classes, e.g.
+
+    $ java -Xmx8g -cp .:lib/* SortWorker --port 7070 --work-dir /data/sort-tmp
+ */
+public class SortWorker {
+    static String SORT = "SORT";
+    static String DONE = "DONE";
+    static String SEPARATOR = "\t";
+    static String TO_SOCKET = "-";
+    static String LISTENING = "Listening on port ";
+    static int SOCKET_BUFFER_BYTES = 1024 * 1024;
+
+    File workDir;
+    SortLimits limits;
+    PrintStream log;
+
+    public SortWorker(File workDir, SortLimits limits, PrintStream log) {
+        this.workDir = workDir;
+        this.limits = limits;
+        this.log = log;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder()
+                .longOpt("port")
+                .desc("Port to listen on, 0 for any free port (printed)")
+                .hasArg()
+                .argName("PORT")
+                .required(true)
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("bind")
+                .desc("Address to listen on (default all)")
+                .hasArg()
+                .argName("ADDRESS")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("work-dir")
+                .desc("Directory for the intermediate files (default a temp dir)")
+                .hasArg()
+                .argName("WORK-DIR")
+                .build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .desc("Number of files sorted concurrently (default chosen by the planner)")
+                .hasArg()
+                .argName("THREADS")
+                .build());
+        CommandLine cmd = SortCommand.parse(options, args, "SortWorker");
+        if (cmd == null) {
+            return;
+        }
+
+        SortLimits limits = new SortLimits();
+        limits.probeDisk = true;
+        if (cmd.hasOption("t")) {
+            limits.numFileSorters = Integer.valueOf(cmd.getOptionValue("t"));
+        }
+        File workDir = cmd.hasOption("work-dir") ? new File(cmd.getOptionValue("work-dir"))
+                : new File(System.getProperty("java.io.tmpdir"), "sortworker-" + ProcessHandle.current().pid());
+        // stdout is the listening port only; both are read by the coordinator as UTF-8
+        PrintStream out = new PrintStream(System.out, true, ExternalSorter.CHARSET);
+        SortWorker worker = new SortWorker(workDir, limits, new PrintStream(System.err, true, ExternalSorter.CHARSET));
+        try (ServerSocket server = new ServerSocket(Integer.parseInt(cmd.getOptionValue("port")), 50,
+                cmd.hasOption("bind") ? InetAddress.getByName(cmd.getOptionValue("bind")) : null)) {
+            out.println(LISTENING + server.getLocalPort());
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    worker.serve(socket);
+                } catch (IOException | RuntimeException e) {
+                    // the coordinator sees the connection end early, the worker takes the next one
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Cannot listen on port " + cmd.getOptionValue("port"));
+        }
+    }
+
+    void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream(), SOCKET_BUFFER_BYTES);
+        String[] header = readLine(in).split(SEPARATOR, -1);
+        if (header.length != 4 || !SORT.equals(header[0])) {
+            throw new RuntimeException("Not a sort request: " + String.join(" ", header));
+        }
+        String name = "partition-" + header[1];
+        KeySpec keySpec = KeySpec.parse(header[2].split(","));
+        log.println("Sorting " + name + " by " + keySpec + " from " + socket.getRemoteSocketAddress());
+
+        // the sorter closes its input once read, which would close the socket
+        InputSource input = InputSource.stream(name, new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        });
+        input.hasHeader = false;
+        SortLimits partitionLimits = copy(limits);
+        partitionLimits.workDir = new File(workDir, name);
+        ExternalSorter sorter = new ExternalSorter(keySpec, partitionLimits);
+        sorter.log = log;
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER_BYTES);
+        if (TO_SOCKET.equals(header[3])) {
+            sorter.sort(input, out, partitionLimits.workDir);
+        } else {
+            sorter.sort(input, new File(header[3]));
+            long rows = sorter.metrics.phase(SortMetrics.MERGE).rows.sum();
+            out.write((DONE + SEPARATOR + rows + "\n").getBytes(ExternalSorter.CHARSET));
+        }
+        out.flush();
+        socket.shutdownOutput();
+    }
+
+    // the header, byte by byte so the rows after it stay in the stream
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.write(b);
+        }
+        if (b < 0 && line.size() == 0) {
+            throw new EOFException("Connection closed");
+        }
+        return line.toString(ExternalSorter.CHARSET);
+    }
+
+    // every partition gets its own work dir, the planner decides the rest without the history file, which
+    // the workers of a host would all append to
+    private static SortLimits copy(SortLimits limits) {
+        SortLimits copy = new SortLimits();
+        copy.numFileSorters = limits.numFileSorters;
+        copy.probeDisk = limits.probeDisk;
+        return copy;
+    }
+}
@@ -0,0 +1,289 @@
+import java.io.*;
+import java.util.*;
+
+/*
+    K-way merge of sorted run files, or of sorted ranges kept in memory (inMemory), handed out one row at a
+    time. With a dictionary the run heads are compared on their dictionary codes, in the same order as the
+    comparator.
+    Collated keys are compared on their collation key bytes, computed once per row read.
+    With the key range of every run the runs are merged stretch by stretch (see RunKeyRange), only the runs of
+    the current stretch open; with copyTo a stretch of one run file is copied there as its bytes instead.
+    Closing it closes and deletes the runs, unless keepRuns; it must be closed even if not read to the end.
+ */
+public class SortedRows implements Iterator<String[]>, Closeable {
+    List<File> runs;
+    SortMetrics.Phase phase;
+    PrintStream log;
+    PriorityQueue<RunHead> heads;
+    List<RangeLineReader> readers = new ArrayList<>();
+    Runnable onClose;
+    boolean closed;
+    boolean countRows = true;
+    // a checkpointed sort deletes the runs itself once they are done
+    boolean keepRuns;
+    // every row was handed out
+    boolean done;
+    int numCols;
+    KeyDictionary dictionary;
+    // collated keys are compared on the sort key of every head, computed once per row
+    ColumnsComparator collated;
+    List<List<String[]>> inMemoryRanges;
+    // runs of every stretch still to be opened, from nextStretch
+    List<List<Integer>> stretches;
+    int nextStretch;
+    int bufferSizeBytes;
+    SpillDirs spillDirs;
+    List<RunKeyRange> ranges;
+    // where stretches of one run go unmerged, once what was written before is flushed
+    OutputStream copyTo;
+    Flushable flushBeforeCopy;
+    long runsCopied;
+    long bytesCopied;
+
+    public SortedRows(List<File> runs, Comparator<String[]> comparator, int bufferSizeBytes, SortMetrics.Phase phase,
+                      PrintStream log, Runnable onClose) {
+        this(runs, comparator, bufferSizeBytes, phase, log, null, onClose);
+    }
+
+    // runs spread over spillDirs are read ahead, from all their directories at once
+    public SortedRows(List<File> runs, Comparator<String[]> comparator, int bufferSizeBytes, SortMetrics.Phase phase,
+                      PrintStream log, SpillDirs spillDirs, Runnable onClose) {
+        this(runs, comparator, bufferSizeBytes, phase, log, spillDirs, null, onClose);
+    }
+
+    public SortedRows(List<File> runs, Comparator<String[]> comparator, int bufferSizeBytes, SortMetrics.Phase phase,
+                      PrintStream log, SpillDirs spillDirs, KeyDictionary dictionary, Runnable onClose) {
+        this(runs, null, comparator, bufferSizeBytes, phase, log, spillDirs, dictionary, onClose);
+    }
+
+    // ranges has the key range of every run, or is null to merge all the runs at once
+    public SortedRows(List<File> runs, List<RunKeyRange> ranges, Comparator<String[]> comparator,
+                      int bufferSizeBytes, SortMetrics.Phase phase, PrintStream log, SpillDirs spillDirs,
+                      KeyDictionary dictionary, Runnable onClose) {
+        this(runs, runs.size(), comparator, phase, log, dictionary, onClose);
+        this.bufferSizeBytes = bufferSizeBytes;
+        this.spillDirs = spillDirs;
+        this.ranges = ranges;
+        // opened by the first hasNext, so a first stretch of one run can be copied too
+        this.stretches = stretches(runs.size(), ranges, comparator);
+    }
+
+    private SortedRows(List<File> runs, int numRuns, Comparator<String[]> comparator, SortMetrics.Phase phase,
+                       PrintStream log, KeyDictionary dictionary, Runnable onClose) {
+        this.runs = runs;
+        this.phase = phase;
+        this.log = log;
+        this.onClose = onClose;
+        this.dictionary = dictionary;
+        if (comparator instanceof ColumnsComparator && ((ColumnsComparator) comparator).isCollated()) {
+            collated = (ColumnsComparator) comparator;
+        }
+        Comparator<RunHead> byKey = dictionary != null ? (one, two) -> dictionary.compare(one.key, two.key)
+                : collated != null ? (one, two) -> collated.compareKeys(one.sortKey, two.sortKey)
+                : (one, two) -> comparator.compare(one.columns, two.columns);
+        // ties go to the earlier run so rows with equal keys keep their input order
+        this.heads = new PriorityQueue<>(Math.max(1, numRuns), (one, two) -> {
+            int comparison = byKey.compare(one, two);
+            return comparison != 0 ? comparison : Integer.compare(one.runIndex, two.runIndex);
+        });
+    }
+
+    // merges sorted ranges of rows in the heap, every row is released once handed out
+    static SortedRows inMemory(List<List<String[]>> ranges, Comparator<String[]> comparator, SortMetrics.Phase phase,
+                               PrintStream log, KeyDictionary dictionary, Runnable onClose) {
+        SortedRows sortedRows = new SortedRows(new ArrayList<>(), ranges.size(), comparator, phase, log, dictionary,
+                onClose);
+        List<RunKeyRange> keyRanges = new ArrayList<>();
+        for (List<String[]> range : ranges) {
+            keyRanges.add(RunKeyRange.of(range));
+        }
+        sortedRows.stretches = RunKeyRange.stretches(keyRanges, comparator);
+        sortedRows.inMemoryRanges = ranges;
+        return sortedRows;
+    }
+
+    static List<List<Integer>> stretches(int numRuns, List<RunKeyRange> ranges,
+                                         Comparator<String[]> comparator) {
+        if (ranges != null) {
+            return RunKeyRange.stretches(ranges, comparator);
+        }
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < numRuns; i++) {
+            all.add(i);
+        }
+        return new ArrayList<>(Collections.singletonList(all));
+    }
+
+    // the runs of the next stretch with rows become the heads, a stretch of one run file is copied if it can be
+    private void openStretch() throws IOException {
+        while (heads.isEmpty() && nextStretch < stretches.size()) {
+            List<Integer> stretch = stretches.get(nextStretch++);
+            // a run without a range (sorted off-heap) has no row count, it is merged
+            if (stretch.size() == 1 && copyTo != null && ranges != null && ranges.get(stretch.get(0)) != null) {
+                copy(stretch.get(0));
+                continue;
+            }
+            for (int i : stretch) {
+                RunHead head;
+                if (inMemoryRanges != null) {
+                    head = new RunHead(inMemoryRanges.get(i), i);
+                } else {
+                    File run = runs.get(i);
+                    RangeLineReader reader = spillDirs != null ? spillDirs.lines(run, bufferSizeBytes)
+                            : new RangeLineReader(run, 0, run.length(), bufferSizeBytes);
+                    readers.add(reader);
+                    head = new RunHead(reader, i);
+                }
+                if (head.advance()) {
+                    numCols = head.columns.length;
+                    heads.add(head);
+                }
+            }
+        }
+        done = heads.isEmpty();
+    }
+
+    // a run that overlaps no other, as it is
+    private void copy(int runIndex) throws IOException {
+        File run = runs.get(runIndex);
+        flushBeforeCopy.flush();
+        long bytes;
+        try (InputStream in = spillDirs != null ? spillDirs.input(run, bufferSizeBytes) : new FileInputStream(run)) {
+            bytes = in.transferTo(copyTo);
+        }
+        phase.bytesRead.add(bytes);
+        phase.bytesWritten.add(bytes);
+        if (countRows) {
+            phase.rows.add(ranges.get(runIndex).rows);
+        }
+        runsCopied++;
+        bytesCopied += bytes;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (heads.isEmpty() && nextStretch < stretches.size()) {
+            try {
+                openStretch();
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error processing file");
+            }
+        }
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public String[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        RunHead head = heads.poll();
+        String[] columns = head.columns;
+        if (countRows) {
+            phase.rows.increment();
+        }
+        try {
+            if (head.advance()) {
+                heads.add(head);
+                if (numCols != head.columns.length) {
+                    numCols = head.columns.length;
+                    log.println("WARN: num columns changed to: " + numCols + "(" + System.currentTimeMillis() + ")");
+                    log.println("WARN: line: " + String.join(ExternalSorter.CSV_SPLIT_BY, head.columns)
+                            + (head.rows != null ? ", range: " + (head.runIndex + 1)
+                            : ", file: " + runs.get(head.runIndex).getName()));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error processing file");
+        }
+        // the next stretch is opened by hasNext, after this row is used
+        done = heads.isEmpty() && nextStretch == stretches.size();
+        return columns;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeReaders();
+        if (!keepRuns) {
+            for (File file : runs) {
+                file.delete();
+            }
+        }
+        if (onClose != null) {
+            onClose.run();
+        }
+    }
+
+    private void closeReaders() {
+        for (RangeLineReader reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class RunHead {
+        String[] columns;
+        KeyDictionary.Encoded key;
+        byte[] sortKey;
+        RangeLineReader reader;
+        // in memory instead of a reader
+        List<String[]> rows;
+        int next;
+        int runIndex;
+
+        RunHead(RangeLineReader reader, int runIndex) {
+            this.reader = reader;
+            this.runIndex = runIndex;
+        }
+
+        RunHead(List<String[]> rows, int runIndex) {
+            this.rows = rows;
+            this.runIndex = runIndex;
+        }
+
+        boolean advance() throws IOException {
+            if (rows != null) {
+                return advanceInMemory();
+            }
+            int length = reader.readLineInto();
+            if (length < 0) {
+                // done with, a merge of many stretches does not keep them all open
+                readers.remove(reader);
+                reader.close();
+                return false;
+            }
+            phase.bytesRead.add(length + 1);
+            columns = reader.split(length);
+            encodeKey();
+            return true;
+        }
+
+        boolean advanceInMemory() {
+            if (next == rows.size()) {
+                return false;
+            }
+            columns = rows.get(next);
+            rows.set(next++, null);
+            encodeKey();
+            return true;
+        }
+
+        private void encodeKey() {
+            if (dictionary != null) {
+                // the head was polled, its key is free
+                key = dictionary.encode(columns, key != null ? key : new KeyDictionary.Encoded());
+            } else if (collated != null) {
+                sortKey = collated.sortKey(columns);
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+    Directories the intermediate run files are spread over, ideally one per local disk, so runs are written
+    and read on all of them at once. A new file goes to the next directory round-robin, or to the one with
+    the most usable space left once the files still being written there are complete.
+
+    With directIo the run files bypass the page cache (see DirectIo), where the directory allows it.
+
+    With checksums (a checkpointed sort, see SortManifest) the CRC32 of every file is computed as it is written.
+
+    With more than one directory merge inputs are read ahead: each directory has one reader thread that
+    fills the next buffer of every run on it while the merge works on the current one, so all the disks
+    are read concurrently instead of one read at a time.
+ */
+public class SpillDirs implements Closeable {
+    static String ROUND_ROBIN = "round-robin";
+    static String FREE_SPACE = "free-space";
+
+    List<File> dirs;
+    boolean byFreeSpace;
+    boolean directIo;
+    // merge inputs are read through pooled off-heap blocks
+    OffHeapArena arena;
+    // of the files being written, null if not checkpointed
+    Map<File, CRC32> checksums;
+    List<Boolean> direct = new ArrayList<>();
+    int nextDir;
+    List<List<Placed>> placed = new ArrayList<>();
+    List<ExecutorService> readAheadThreads = new ArrayList<>();
+
+    public SpillDirs(List<File> dirs, boolean byFreeSpace) {
+        this(dirs, byFreeSpace, false);
+    }
+
+    public SpillDirs(List<File> dirs, boolean byFreeSpace, boolean directIo) {
+        if (dirs.isEmpty()) {
+            throw new RuntimeException("No directories for the intermediate files");
+        }
+        this.dirs = new ArrayList<>(dirs);
+        this.byFreeSpace = byFreeSpace;
+        this.directIo = directIo;
+        for (File dir : this.dirs) {
+            dir.mkdirs();
+            if (!dir.isDirectory()) {
+                throw new RuntimeException("Cannot create directory " + dir.getPath());
+            }
+            placed.add(new ArrayList<>());
+            readAheadThreads.add(null);
+            boolean supported = directIo && DirectIo.isSupported(dir);
+            if (directIo && !supported) {
+                System.err.println("WARN: no direct I/O in " + dir.getPath() + ", spills are forced to disk instead");
+            }
+            direct.add(supported);
+        }
+    }
+
+    boolean isStriped() {
+        return dirs.size() > 1;
+    }
+
+    File first() {
+        return dirs.get(0);
+    }
+
+    // a new file for about expectedBytes
+    public synchronized File newFile(String name, long expectedBytes) {
+        int dir;
+        if (byFreeSpace && isStriped()) {
+            dir = 0;
+            long mostFree = Long.MIN_VALUE;
+            for (int i = 0; i < dirs.size(); i++) {
+                long free = dirs.get(i).getUsableSpace() - pendingBytes(i);
+                if (free > mostFree) {
+                    mostFree = free;
+                    dir = i;
+                }
+            }
+        } else {
+            dir = nextDir;
+            nextDir = (nextDir + 1) % dirs.size();
+        }
+        File file = new File(dirs.get(dir), name);
+        placed.get(dir).add(new Placed(file, expectedBytes));
+        return file;
+    }
+
+    // bytes still to be written to the files placed in a directory
+    private long pendingBytes(int dir) {
+        long pending = 0;
+        List<Placed> files = placed.get(dir);
+        for (int i = files.size() - 1; i >= 0; i--) {
+            Placed file = files.get(i);
+            long written = file.file.length();
+            // complete, or already merged and deleted
+            if (written >= file.expectedBytes || (file.seen && !file.file.exists())) {
+                files.remove(i);
+            } else {
+                file.seen |= written > 0;
+                pending += file.expectedBytes - written;
+            }
+        }
+        return pending;
+    }
+
+    public BufferedWriter writer(File run, int bufferSizeBytes) throws IOException {
+        if (!directIo && checksums == null) {
+            return new BufferedWriter(new FileWriter(run, ExternalSorter.CHARSET), bufferSizeBytes);
+        }
+        return new BufferedWriter(new OutputStreamWriter(output(run, bufferSizeBytes), ExternalSorter.CHARSET),
+                bufferSizeBytes);
+    }
+
+    public OutputStream output(File run, int bufferSizeBytes) throws IOException {
+        OutputStream out;
+        if (!directIo) {
+            out = new BufferedOutputStream(new FileOutputStream(run), bufferSizeBytes);
+        } else {
+            int dir = dirs.indexOf(run.getParentFile());
+            out = DirectIo.output(run, bufferSizeBytes, dir >= 0 && direct.get(dir));
+        }
+        if (checksums != null) {
+            CRC32 crc = new CRC32();
+            synchronized (this) {
+                checksums.put(run, crc);
+            }
+            out = new CheckedOutputStream(out, crc);
+        }
+        return out;
+    }
+
+    // CRC32 of a file written through output() or writer(), once closed
+    public synchronized long checksum(File run) {
+        CRC32 crc = checksums.remove(run);
+        if (crc == null) {
+            throw new RuntimeException("No checksum of " + run.getPath());
+        }
+        return crc.getValue();
+    }
+
+    // the lines of a run, read through the buffer of the reader
+    public RangeLineReader lines(File run, int bufferSizeBytes) throws IOException {
+        return new RangeLineReader(input(run, bufferSizeBytes), bufferSizeBytes);
+    }
+
+    // the bytes of a run
+    public InputStream input(File run, int bufferSizeBytes) throws IOException {
+        int dir = dirs.indexOf(run.getParentFile());
+        InputStream in;
+        if (directIo) {
+            in = DirectIo.input(run, bufferSizeBytes, dir >= 0 && direct.get(dir));
+        } else if (arena != null) {
+            in = arena.input(run, bufferSizeBytes);
+        } else {
+            in = new FileInputStream(run);
+        }
+        if (isStriped() && dir >= 0) {
+            in = new ReadAheadInputStream(in, bufferSizeBytes, readAheadThread(dir));
+        }
+        return in;
+    }
+
+    private synchronized ExecutorService readAheadThread(int dir) {
+        ExecutorService executorService = readAheadThreads.get(dir);
+        if (executorService == null) {
+            executorService = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "read-ahead-" + dirs.get(dir).getName());
+                thread.setDaemon(true);
+                return thread;
+            });
+            readAheadThreads.set(dir, executorService);
+        }
+        return executorService;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (ExecutorService executorService : readAheadThreads) {
+            if (executorService != null) {
+                executorService.shutdownNow();
+            }
+        }
+    }
+
+    private static class Placed {
+        File file;
+        long expectedBytes;
+        boolean seen;
+
+        Placed(File file, long expectedBytes) {
+            this.file = file;
+            this.expectedBytes = expectedBytes;
+        }
+    }
+
+    // two buffers: one is read by the merge while the reader thread of the directory fills the other
+    private static class ReadAheadInputStream extends InputStream {
+        InputStream in;
+        ExecutorService readAheadThread;
+        Future<Integer> next;
+        byte[] current;
+        byte[] filling;
+        int position;
+        int length;
+
+        ReadAheadInputStream(InputStream in, int bufferSizeBytes, ExecutorService readAheadThread) {
+            this.in = in;
+            this.readAheadThread = readAheadThread;
+            this.current = new byte[bufferSizeBytes];
+            this.filling = new byte[bufferSizeBytes];
+            readAhead();
+        }
+
+        private void readAhead() {
+            byte[] buffer = filling;
+            next = readAheadThread.submit(() -> in.readNBytes(buffer, 0, buffer.length));
+        }
+
+        private boolean ensureData() throws IOException {
+            if (position < length) {
+                return true;
+            }
+            if (next == null) {
+                return false;
+            }
+            try {
+                length = next.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Cannot read ahead", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading ahead");
+            }
+            byte[] read = filling;
+            filling = current;
+            current = read;
+            position = 0;
+            if (length < current.length) {
+                next = null;
+            } else {
+                readAhead();
+            }
+            return length > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureData() ? current[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            int chunk = Math.min(count, length - position);
+            System.arraycopy(current, position, bytes, offset, chunk);
+            position += chunk;
+            return chunk;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // a read in flight still fills a buffer of in (a pooled off-heap block with an arena), so in is closed
+            // once it is done; a read dropped by SpillDirs.close never starts, the thread ends instead
+            boolean interrupted = false;
+            while (next != null && !next.isDone() && !readAheadThread.isTerminated()) {
+                try {
+                    next.get(100, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    // closing anyway
+                } catch (TimeoutException e) {
+                    // looking again
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    Tag sort of a file: the rows are not moved until the output is written, only their tags are sorted.
+
+    a) Every byte range of the file is read on its own thread, and every row kept becomes a tag: its encoded
+       key (KeySpec.encode) and the offset and length of its line in the file. Keys compare as the merges of
+       the other sorts compare them (ColumnsComparator.compareKeys), so the order is the same as theirs.
+    b) The tags of a range are sorted by key, then offset, so rows with equal keys keep their input order, and
+       written to a tag run unless the whole file fits in memory. Tag runs are merged in passes of at most
+       the merge fan-in.
+    c) The output is gathered from the memory-mapped file in the order of the tags, a batch at a time: the
+       lines of a batch are copied in file order (forward reads the kernel's readahead follows), on several
+       threads each with its own stretch of the file, to their place in key order, then written.
+
+    Wide rows with a small key are read twice but never written to, read from and parsed out of run files.
+ */
+public class TagSorter {
+    static int GATHER_ROWS = 64 * 1024;
+    static int GATHER_BYTES = 32 * 1024 * 1024;
+    static long MAP_BYTES = 1024L * 1024 * 1024;
+    // windows overlap by this much, so rows up to it never straddle two
+    static int MAP_OVERLAP = 1024 * 1024;
+
+    KeySpec keySpec;
+    SortLimits limits;
+    SortPlanner.Plan plan;
+    SpillDirs spillDirs;
+    SortMetrics metrics;
+    PrintStream log;
+    // of the tag keys only, which are encoded on the sorting threads
+    ColumnsComparator comparator;
+
+    public TagSorter(KeySpec keySpec, SortLimits limits, SortPlanner.Plan plan, SpillDirs spillDirs,
+                     SortMetrics metrics, PrintStream log) {
+        this.keySpec = keySpec;
+        this.limits = limits;
+        this.plan = plan;
+        this.spillDirs = spillDirs;
+        this.metrics = metrics;
+        this.log = log;
+        this.comparator = keySpec.comparator(metrics.comparisons);
+    }
+
+    // the rows of file (after its header) sorted to out, which is flushed but not closed
+    public void sort(File file, boolean hasHeader, OutputStream out) throws IOException {
+        SortMetrics.Phase phase = metrics.startPhase(SortMetrics.SPLIT);
+        List<ExternalSorter.RunSource> sources = ExternalSorter.byteRanges(file, hasHeader, plan);
+        phase.end();
+
+        phase = metrics.startPhase(SortMetrics.SORT);
+        List<TagRun> runs = sortRanges(sources, phase);
+        phase.end();
+
+        SortMetrics.Phase mergePhase = metrics.startPhase(SortMetrics.MERGE);
+        try {
+            for (int pass = 1; runs.size() > plan.mergeFanIn; pass++) {
+                List<TagRun> merged = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += plan.mergeFanIn) {
+                    merged.add(mergeRuns(runs.subList(i, Math.min(runs.size(), i + plan.mergeFanIn)),
+                            "tags-merge-" + pass + "-" + merged.size(), mergePhase));
+                }
+                runs = merged;
+            }
+            metrics.mergeFanIn(runs.size());
+            gather(file, runs, out, mergePhase);
+        } finally {
+            for (TagRun run : runs) {
+                run.delete();
+            }
+            mergePhase.end();
+        }
+    }
+
+    private List<TagRun> sortRanges(List<ExternalSorter.RunSource> sources, SortMetrics.Phase phase)
+            throws IOException {
+        ExecutorService executorService = metrics.newSortExecutor(plan.numFileSorters);
+        List<TagRun> runs = new ArrayList<>();
+        try {
+            List<Future<TagRun>> futures = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                ExternalSorter.RunSource source = sources.get(i);
+                int index = i;
+                futures.add(executorService.submit(() -> sortRange(source, index, phase)));
+                metrics.sortTaskSubmitted();
+            }
+            for (Future<TagRun> future : futures) {
+                runs.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            for (TagRun run : runs) {
+                run.delete();
+            }
+            e.printStackTrace();
+            throw new RuntimeException("Error sorting tags", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted sorting tags");
+        } finally {
+            executorService.shutdownNow();
+        }
+        return runs;
+    }
+
+    private TagRun sortRange(ExternalSorter.RunSource source, int index, SortMetrics.Phase phase) throws IOException {
+        long start = System.currentTimeMillis();
+        List<Tag> tags = new ArrayList<>();
+        try (RangeLineReader reader = source.open(plan.bufferSizeBytes, limits)) {
+            int length;
+            while ((length = reader.readLineInto()) >= 0) {
+                tags.add(new Tag(keySpec.encode(reader.split(length)), reader.lineStart, length));
+            }
+            phase.rows.add(tags.size());
+            phase.bytesRead.add(reader.bytesRead);
+            metrics.filtered(reader.filter, reader.rowsRejected, tags.size());
+        }
+        long sortStart = System.nanoTime();
+        tags.sort(this::compare);
+        metrics.inMemorySortNanos.add(System.nanoTime() - sortStart);
+
+        TagRun run = new TagRun();
+        if (plan.inMemory) {
+            run.tags = tags;
+        } else {
+            run.file = spillDirs.newFile("tags-" + (index + 1), tags.size() * 32L);
+            try (DataOutputStream out = new DataOutputStream(spillDirs.output(run.file, plan.bufferSizeBytes))) {
+                for (Tag tag : tags) {
+                    tag.write(out);
+                }
+            }
+            phase.bytesWritten.add(run.file.length());
+            metrics.spillBytes.add(run.file.length());
+            metrics.addRun(run.file.length());
+        }
+        metrics.sortTaskCompleted(System.currentTimeMillis() - start);
+        return run;
+    }
+
+    // an intermediate merge into a new tag run
+    private TagRun mergeRuns(List<TagRun> runs, String name, SortMetrics.Phase phase) throws IOException {
+        long bytes = 0;
+        for (TagRun run : runs) {
+            bytes += run.file.length();
+        }
+        TagRun merged = new TagRun();
+        merged.file = spillDirs.newFile(name, bytes);
+        try (DataOutputStream out = new DataOutputStream(spillDirs.output(merged.file, plan.bufferSizeBytes))) {
+            merge(runs, tag -> tag.write(out));
+        }
+        phase.bytesWritten.add(merged.file.length());
+        metrics.spillBytes.add(merged.file.length());
+        for (TagRun run : runs) {
+            run.delete();
+        }
+        return merged;
+    }
+
+    // the tags of all the runs in order to consumer
+    private void merge(List<TagRun> runs, TagConsumer consumer) throws IOException {
+        PriorityQueue<TagInput> heads = new PriorityQueue<>((one, two) -> compare(one.head, two.head));
+        List<TagInput> inputs = new ArrayList<>();
+        try {
+            for (TagRun run : runs) {
+                TagInput input = run.open(plan.bufferSizeBytes);
+                inputs.add(input);
+                if (input.advance()) {
+                    heads.add(input);
+                }
+            }
+            while (!heads.isEmpty()) {
+                TagInput input = heads.poll();
+                consumer.accept(input.head);
+                if (input.advance()) {
+                    heads.add(input);
+                }
+            }
+        } finally {
+            for (TagInput input : inputs) {
+                input.close();
+            }
+        }
+    }
+
+    // the lines of the tags in order from the mapped file, a batch at a time
+    private void gather(File file, List<TagRun> runs, OutputStream out, SortMetrics.Phase phase) throws IOException {
+        ExecutorService executorService = Executors.newFixedThreadPool(plan.numFileSorters);
+        try (MappedFile mapped = new MappedFile(file)) {
+            Batch batch = new Batch();
+            merge(runs, tag -> {
+                if (batch.size > 0 && (batch.size == GATHER_ROWS || batch.bytes + tag.length + 1 > GATHER_BYTES)) {
+                    batch.write(mapped, out, executorService, phase);
+                }
+                batch.add(tag);
+            });
+            batch.write(mapped, out, executorService, phase);
+            out.flush();
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private int compare(Tag one, Tag two) {
+        int comparison = comparator.compareKeys(one.key, two.key);
+        return comparison != 0 ? comparison : Long.compare(one.offset, two.offset);
+    }
+
+    static class Tag {
+        byte[] key;
+        long offset;
+        int length;
+
+        Tag(byte[] key, long offset, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeLong(offset);
+            out.writeInt(length);
+        }
+
+        // null at the end of the run
+        static Tag read(DataInputStream in) throws IOException {
+            int keyLength;
+            try {
+                keyLength = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte[] key = new byte[keyLength];
+            in.readFully(key);
+            return new Tag(key, in.readLong(), in.readInt());
+        }
+    }
+
+    // sorted tags, in memory or in a file
+    private class TagRun {
+        List<Tag> tags;
+        File file;
+
+        TagInput open(int bufferSizeBytes) throws IOException {
+            if (tags != null) {
+                Iterator<Tag> iterator = tags.iterator();
+                return new TagInput(() -> iterator.hasNext() ? iterator.next() : null, null);
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    spillDirs.input(file, bufferSizeBytes), bufferSizeBytes));
+            return new TagInput(() -> Tag.read(in), in);
+        }
+
+        void delete() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private static class TagInput implements Closeable {
+        TagSource source;
+        Closeable in;
+        Tag head;
+
+        TagInput(TagSource source, Closeable in) {
+            this.source = source;
+            this.in = in;
+        }
+
+        boolean advance() throws IOException {
+            head = source.next();
+            return head != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private interface TagSource {
+        Tag next() throws IOException;
+    }
+
+    private interface TagConsumer {
+        void accept(Tag tag) throws IOException;
+    }
+
+    // the tags of up to GATHER_ROWS lines, each given its place in the output as it is added
+    private class Batch {
+        long[] offsets = new long[GATHER_ROWS];
+        int[] lengths = new int[GATHER_ROWS];
+        int[] places = new int[GATHER_ROWS];
+        int size;
+        int bytes;
+        byte[] lines = new byte[0];
+
+        void add(Tag tag) {
+            offsets[size] = tag.offset;
+            lengths[size] = tag.length;
+            places[size] = bytes;
+            bytes += tag.length + 1;
+            size++;
+        }
+
+        void write(MappedFile mapped, OutputStream out, ExecutorService executorService, SortMetrics.Phase phase)
+                throws IOException {
+            if (size == 0) {
+                return;
+            }
+            if (lines.length < bytes) {
+                lines = new byte[Math.max(bytes, Math.min(GATHER_BYTES, lines.length * 2))];
+            }
+            // the lines in file order, cut into one forward stretch per thread: offset and index packed in a
+            // long sort as primitives, offsets below 2^47 and indexes below GATHER_ROWS = 2^16
+            long[] byOffset = new long[size];
+            for (int i = 0; i < size; i++) {
+                byOffset[i] = offsets[i] << 16 | i;
+            }
+            Arrays.sort(byOffset);
+            int stretches = Math.min(plan.numFileSorters, size);
+            List<Callable<Void>> copies = new ArrayList<>();
+            for (int s = 0; s < stretches; s++) {
+                int from = size * s / stretches;
+                int to = size * (s + 1) / stretches;
+                copies.add(() -> {
+                    for (int j = from; j < to; j++) {
+                        int i = (int) (byOffset[j] & 0xffff);
+                        mapped.get(offsets[i], lines, places[i], lengths[i]);
+                        lines[places[i] + lengths[i]] = '\n';
+                    }
+                    return null;
+                });
+            }
+            try {
+                for (Future<Void> copy : executorService.invokeAll(copies)) {
+                    copy.get();
+                }
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error gathering rows", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted gathering rows");
+            }
+            out.write(lines, 0, bytes);
+            phase.rows.add(size);
+            phase.bytesRead.add(bytes);
+            phase.bytesWritten.add(bytes);
+            size = 0;
+            bytes = 0;
+        }
+    }
+
+    // a file mapped in windows of MAP_BYTES, mapped as they are first read
+    private static class MappedFile implements Closeable {
+        FileChannel channel;
+        long size;
+        MappedByteBuffer[] windows;
+
+        MappedFile(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            size = channel.size();
+            windows = new MappedByteBuffer[(int) Math.max(1, (size + MAP_BYTES - 1) / MAP_BYTES)];
+        }
+
+        // bytes [offset, offset + length) into bytes at place
+        void get(long offset, byte[] bytes, int place, int length) throws IOException {
+            int index = (int) (offset / MAP_BYTES);
+            MappedByteBuffer window = window(index);
+            int start = (int) (offset - index * MAP_BYTES);
+            if (start + length <= window.capacity()) {
+                window.get(start, bytes, place, length);
+                return;
+            }
+            // longer than the overlap
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, place, length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position() - place) < 0) {
+                    throw new EOFException("Row past the end of the file at " + offset);
+                }
+            }
+        }
+
+        private synchronized MappedByteBuffer window(int index) throws IOException {
+            if (windows[index] == null) {
+                long start = index * MAP_BYTES;
+                windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(size - start, MAP_BYTES + MAP_OVERLAP));
+            }
+            return windows[index];
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
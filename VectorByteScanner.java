@@ -0,0 +1,49 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+    ByteScanner comparing SPECIES.length() bytes at once (32 with AVX2, 64 with AVX-512): one compare gives a
+    mask of the matching bytes, whose first lane is the next newline and whose set bits are all the commas.
+    The tail shorter than a vector is scanned one byte at a time.
+
+    Needs the incubator module to build and to run:
+
+    $ ./build-vector.sh
+    $ java --add-modules jdk.incubator.vector -cp .:lib/* SortLargeFileParallel ...
+ */
+public class VectorByteScanner extends ByteScanner {
+    static VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    @Override
+    public String name() {
+        return VECTOR + " (" + SPECIES.vectorByteSize() + " byte strides)";
+    }
+
+    @Override
+    public int indexOf(byte[] bytes, int from, int to, byte b) {
+        int i = from;
+        int bound = to - SPECIES.length();
+        for (; i <= bound; i += SPECIES.length()) {
+            VectorMask<Byte> mask = ByteVector.fromArray(SPECIES, bytes, i).eq(b);
+            if (mask.anyTrue()) {
+                return i + mask.firstTrue();
+            }
+        }
+        return super.indexOf(bytes, i, to, b);
+    }
+
+    @Override
+    public void positions(byte[] bytes, int from, int to, byte b, Positions positions) {
+        int i = from;
+        int bound = to - SPECIES.length();
+        for (; i <= bound; i += SPECIES.length()) {
+            long mask = ByteVector.fromArray(SPECIES, bytes, i).eq(b).toLong();
+            while (mask != 0) {
+                positions.add(i + Long.numberOfTrailingZeros(mask));
+                mask &= mask - 1;
+            }
+        }
+        super.positions(bytes, i, to, b, positions);
+    }
+}
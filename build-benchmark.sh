@@ -0,0 +1 @@
+javac -cp .:lib/* SortLargeFileBenchmark.java
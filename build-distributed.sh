@@ -0,0 +1 @@
+javac -cp .:lib/* SortCoordinator.java SortWorker.java
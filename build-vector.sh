@@ -0,0 +1 @@
+javac --add-modules jdk.incubator.vector -cp .:lib/* VectorByteScanner.java